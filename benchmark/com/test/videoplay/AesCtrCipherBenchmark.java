@@ -0,0 +1,146 @@
+package com.test.videoplay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * What encrypting the cache costs: reads and writes of a temp file through
+ * the same positional FileChannel calls VideoCache.Entry makes, plain and
+ * through {@link AesCtrCipher}. Only needs the JDK, so it runs on the
+ * desktop:
+ * <pre>
+ * javac -d /tmp/bench src/com/test/videoplay/AesCtrCipher.java \
+ *         benchmark/com/test/videoplay/AesCtrCipherBenchmark.java
+ * java -cp /tmp/bench com.test.videoplay.AesCtrCipherBenchmark [MB]
+ * </pre>
+ * The file is read back right after it is written, so reads come from the
+ * page cache and the numbers show the cipher's share at its largest.
+ */
+public class AesCtrCipherBenchmark {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 7;
+
+    private final FileChannel mChannel;
+    private final long mLength;
+    private final AesCtrCipher mCipher;
+    private final long mNonce;
+    private final ByteBuffer mHeap = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer mDirect = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] mData = new byte[BUFFER_SIZE];
+
+    private AesCtrCipherBenchmark(FileChannel channel, long length, SecretKey key)
+            throws GeneralSecurityException {
+        mChannel = channel;
+        mLength = length;
+        mCipher = new AesCtrCipher(key);
+        mNonce = new Random(1).nextLong();
+        new Random(2).nextBytes(mData);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        long length = megabytes * 1024L * 1024L;
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        File file = File.createTempFile("cipher", ".bench");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            AesCtrCipherBenchmark bench =
+                    new AesCtrCipherBenchmark(raf.getChannel(), length, generator.generateKey());
+            System.out.println(megabytes + " MB, " + BUFFER_SIZE / 1024 + " KB buffers, "
+                    + System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+            bench.report("write plain", 0);
+            bench.report("write encrypted", 1);
+            bench.report("read plain", 2);
+            bench.report("read decrypted, heap buffer", 3);
+            bench.report("read decrypted, direct buffer", 4);
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    private void report(String name, int mode) throws IOException {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            run(mode);
+        }
+        double[] rates = new double[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            run(mode);
+            rates[i] = mLength / 1048576.0 / ((System.nanoTime() - start) / 1e9);
+        }
+        Arrays.sort(rates);
+        System.out.println(String.format("%-32s median %7.1f MB/s  (min %.1f, max %.1f)",
+                name, rates[RUNS / 2], rates[0], rates[RUNS - 1]));
+    }
+
+    private void run(int mode) throws IOException {
+        for (long position = 0; position < mLength; position += BUFFER_SIZE) {
+            int count = (int) Math.min(BUFFER_SIZE, mLength - position);
+            switch (mode) {
+                case 0:
+                    write(position, ByteBuffer.wrap(mData, 0, count));
+                    break;
+                case 1:
+                    writeEncrypted(position, ByteBuffer.wrap(mData, 0, count));
+                    break;
+                case 2:
+                    read(position, mHeap, count, false);
+                    break;
+                case 3:
+                    read(position, mHeap, count, true);
+                    break;
+                case 4:
+                    read(position, mDirect, count, true);
+                    break;
+            }
+        }
+    }
+
+    // the same calls as VideoCache.Entry.write()
+    private void write(long position, ByteBuffer src) throws IOException {
+        long written = 0;
+        while (src.hasRemaining()) {
+            written += mChannel.write(src, position + written);
+        }
+    }
+
+    private void writeEncrypted(long position, ByteBuffer src) throws IOException {
+        long written = 0;
+        while (src.hasRemaining()) {
+            ByteBuffer chunk = mCipher.encryptChunk(mNonce, position + written, src);
+            while (chunk.hasRemaining()) {
+                written += mChannel.write(chunk, position + written);
+            }
+        }
+    }
+
+    // and as VideoCache.Entry.read()
+    private void read(long position, ByteBuffer dst, int count, boolean decrypt)
+            throws IOException {
+        dst.clear();
+        dst.limit(count);
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = mChannel.read(dst, position + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        if (decrypt && total > 0) {
+            mCipher.apply(mNonce, position, dst, 0, total);
+        }
+    }
+}
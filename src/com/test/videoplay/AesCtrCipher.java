@@ -0,0 +1,111 @@
+package com.test.videoplay;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+
+/**
+ * AES in counter mode, random access: the keystream for byte n depends only
+ * on the key, the nonce and n, so any range of a file can be encrypted or
+ * decrypted on its own. That is what lets an encrypted cache entry serve a
+ * seek without decrypting everything before it.
+ * <p>
+ * The counter blocks are encrypted with a plain AES/ECB cipher into a
+ * keystream array owned by this object, so once constructed nothing is
+ * allocated per call. Not thread safe; give every reader its own instance.
+ */
+public class AesCtrCipher {
+    private static final int BLOCK_SIZE = 16;
+    // keystream generated per cipher call
+    private static final int CHUNK_BLOCKS = 256;
+
+    private final Cipher mCipher;
+    private final byte[] mCounters = new byte[CHUNK_BLOCKS * BLOCK_SIZE];
+    private final byte[] mKeystream = new byte[CHUNK_BLOCKS * BLOCK_SIZE];
+    // staging for buffers without a backing array
+    private final byte[] mScratch = new byte[CHUNK_BLOCKS * BLOCK_SIZE];
+    private final ByteBuffer mScratchBuffer = ByteBuffer.wrap(mScratch);
+
+    public AesCtrCipher(SecretKey key) throws GeneralSecurityException {
+        mCipher = Cipher.getInstance("AES/ECB/NoPadding");
+        mCipher.init(Cipher.ENCRYPT_MODE, key);
+    }
+
+    /**
+     * XOR data with the keystream at position; this both encrypts and
+     * decrypts.
+     *
+     * @param nonce Distinguishes files encrypted with the same key.
+     * @param position Where data[offset] sits in the file.
+     */
+    public void apply(long nonce, long position, byte[] data, int offset, int count) {
+        int done = 0;
+        while (done < count) {
+            long at = position + done;
+            int skip = (int) (at & (BLOCK_SIZE - 1));
+            int blocks = Math.min(CHUNK_BLOCKS, (skip + count - done + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            generate(nonce, at >>> 4, blocks);
+            int n = Math.min(count - done, blocks * BLOCK_SIZE - skip);
+            for (int i = 0; i < n; i++) {
+                data[offset + done + i] ^= mKeystream[skip + i];
+            }
+            done += n;
+        }
+    }
+
+    /**
+     * Like {@link #apply(long, long, byte[], int, int)} for count bytes of
+     * buf starting at index. The buffer's position is left alone.
+     */
+    public void apply(long nonce, long position, ByteBuffer buf, int index, int count) {
+        if (buf.hasArray()) {
+            apply(nonce, position, buf.array(), buf.arrayOffset() + index, count);
+            return;
+        }
+        int saved = buf.position();
+        int done = 0;
+        while (done < count) {
+            int n = Math.min(count - done, mScratch.length);
+            buf.position(index + done);
+            buf.get(mScratch, 0, n);
+            apply(nonce, position + done, mScratch, 0, n);
+            buf.position(index + done);
+            buf.put(mScratch, 0, n);
+            done += n;
+        }
+        buf.position(saved);
+    }
+
+    /**
+     * Copy up to one chunk of src into an internal buffer, encrypting it on
+     * the way, and advance src. The returned buffer is only valid until the
+     * next call.
+     */
+    public ByteBuffer encryptChunk(long nonce, long position, ByteBuffer src) {
+        int n = Math.min(src.remaining(), mScratch.length);
+        src.get(mScratch, 0, n);
+        apply(nonce, position, mScratch, 0, n);
+        mScratchBuffer.clear();
+        mScratchBuffer.limit(n);
+        return mScratchBuffer;
+    }
+
+    private void generate(long nonce, long block, int blocks) {
+        for (int i = 0; i < blocks; i++) {
+            int base = i * BLOCK_SIZE;
+            long counter = block + i;
+            for (int b = 0; b < 8; b++) {
+                mCounters[base + b] = (byte) (nonce >>> (56 - 8 * b));
+                mCounters[base + 8 + b] = (byte) (counter >>> (56 - 8 * b));
+            }
+        }
+        try {
+            mCipher.update(mCounters, 0, blocks * BLOCK_SIZE, mKeystream, 0);
+        } catch (ShortBufferException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.test.videoplay;
+
+import android.os.SystemClock;
+
+/**
+ * Estimates the download rate from the reads that actually delivered media
+ * bytes, over a sliding window of the most recent ones. Each read counts the
+ * wall clock time since the one before, connecting and waiting for the
+ * origin included; only time the fetch stood still on purpose, paused at
+ * its read-ahead limit or waiting for the player to take the bytes, is left
+ * out so it does not drag the estimate down. The rate is that of a single
+ * connection, which is how the player fetches.
+ * <p>
+ * Thread safe; recording allocates nothing.
+ */
+public class BandwidthMeter {
+    private static final int MAX_SAMPLES = 64;
+    // older samples say little about the network now
+    private static final int MAX_AGE_MS = 30000;
+    // below this the estimate is mostly connection setup noise
+    private static final long MIN_BYTES = 128 * 1024;
+
+    private final long[] mBytes = new long[MAX_SAMPLES];
+    private final long[] mNanos = new long[MAX_SAMPLES];
+    private final long[] mTimes = new long[MAX_SAMPLES];
+    private int mNext;
+    private int mCount;
+
+    /**
+     * @param bytes What one read delivered.
+     * @param nanos How long it took to arrive, since the previous read or
+     * the request.
+     */
+    public synchronized void onTransfer(long bytes, long nanos) {
+        mBytes[mNext] = bytes;
+        mNanos[mNext] = nanos;
+        mTimes[mNext] = SystemClock.elapsedRealtime();
+        mNext = (mNext + 1) % MAX_SAMPLES;
+        mCount = Math.min(mCount + 1, MAX_SAMPLES);
+    }
+
+    /**
+     * @return The estimated rate in bits per second, or -1 while there is
+     * too little recent data to tell.
+     */
+    public synchronized long getBitrateEstimate() {
+        long oldest = SystemClock.elapsedRealtime() - MAX_AGE_MS;
+        long bytes = 0;
+        long nanos = 0;
+        for (int i = 0; i < mCount; i++) {
+            int slot = (mNext - 1 - i + MAX_SAMPLES) % MAX_SAMPLES;
+            if (mTimes[slot] < oldest) {
+                break;
+            }
+            bytes += mBytes[slot];
+            nanos += mNanos[slot];
+        }
+        if (bytes < MIN_BYTES || nanos <= 0) {
+            return -1;
+        }
+        return (long) (bytes * 8 * 1e9 / nanos);
+    }
+}
@@ -0,0 +1,79 @@
+package com.test.videoplay;
+
+/**
+ * How much of a progressive stream {@link MyVideoView} keeps buffered: how
+ * much to have before starting, how much to gather again after a stall
+ * before resuming, and how far ahead of the playback position fetching
+ * goes before it pauses.
+ * <p>
+ * The start and resume amounts adapt to the measured download rate. A link
+ * comfortably faster than the video needs less of a cushion; one slower
+ * than the video needs enough buffered that the download finishes before
+ * playback catches up with it.
+ */
+public class BufferPolicy {
+    public static final int DEFAULT_START_BUFFER_MS = 2500;
+    public static final int DEFAULT_RESUME_BUFFER_MS = 5000;
+    public static final int DEFAULT_MAX_READ_AHEAD_MS = 60000;
+
+    // a link this much faster than the video counts as keeping up
+    private static final float SAFETY = 1.25f;
+    // never start on less than this, whatever the rate
+    private static final int MIN_BUFFER_MS = 500;
+
+    private final int mStartBufferMs;
+    private final int mResumeBufferMs;
+    private final int mMaxReadAheadMs;
+
+    public BufferPolicy() {
+        this(DEFAULT_START_BUFFER_MS, DEFAULT_RESUME_BUFFER_MS, DEFAULT_MAX_READ_AHEAD_MS);
+    }
+
+    /**
+     * @param startBufferMs Buffered media needed to start playing, when the
+     * link just keeps up with the video.
+     * @param resumeBufferMs The same for resuming after a stall.
+     * @param maxReadAheadMs How far ahead of the playback position to fetch.
+     */
+    public BufferPolicy(int startBufferMs, int resumeBufferMs, int maxReadAheadMs) {
+        mStartBufferMs = startBufferMs;
+        mResumeBufferMs = resumeBufferMs;
+        mMaxReadAheadMs = maxReadAheadMs;
+    }
+
+    public int getStartBufferMs() {
+        return mStartBufferMs;
+    }
+
+    public int getResumeBufferMs() {
+        return mResumeBufferMs;
+    }
+
+    public int getMaxReadAheadMs() {
+        return mMaxReadAheadMs;
+    }
+
+    /**
+     * @param rebuffering Whether playback stalled, as opposed to starting.
+     * @param bandwidthBps The measured download rate, or -1 if unknown.
+     * @param mediaBps The video's average bitrate, or -1 if unknown.
+     * @param remainingMs Media left to play.
+     * @return How much must be buffered ahead before playing.
+     */
+    public long getRequiredBufferMs(boolean rebuffering, long bandwidthBps, long mediaBps,
+            long remainingMs) {
+        long required = rebuffering ? mResumeBufferMs : mStartBufferMs;
+        if (bandwidthBps > 0 && mediaBps > 0) {
+            double ratio = bandwidthBps / (mediaBps * (double) SAFETY);
+            if (ratio >= 1) {
+                // the buffer grows while playing; the faster, the less to wait for
+                required = Math.max(MIN_BUFFER_MS, (long) (required / ratio));
+            } else {
+                // the buffer drains while playing; have enough for the rest
+                required = Math.max(required, (long) (remainingMs * (1 - ratio)));
+            }
+        }
+        // never more than gets fetched, or than is left
+        return Math.min(required, Math.min(mMaxReadAheadMs, remainingMs));
+    }
+}
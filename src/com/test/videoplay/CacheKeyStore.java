@@ -0,0 +1,159 @@
+package com.test.videoplay;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+/**
+ * Creates and keeps the key an encrypted {@link VideoCache} is opened with.
+ * The AES key itself is generated in software, so the cache's ciphers run
+ * at full speed, and kept in a file in the app's private files directory.
+ * From API 23 on the file holds it wrapped by a key in the Android Keystore,
+ * which never leaves the keystore; before that it holds the key as is and
+ * only the app sandbox protects it.
+ * <p>
+ * If the stored key cannot be recovered, e.g. because the keystore was
+ * reset, a new one is created and the cache drops what it wrote under the
+ * old one.
+ */
+public class CacheKeyStore {
+    private static final String TAG = "CacheKeyStore";
+
+    private static final String KEY_FILE = "video_cache.key";
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String WRAP_ALIAS = "video_cache";
+    private static final int FORMAT_PLAIN = 1;
+    private static final int FORMAT_WRAPPED = 2;
+    private static final int KEY_BITS = 128;
+    private static final int GCM_TAG_BITS = 128;
+
+    private CacheKeyStore() {
+    }
+
+    /**
+     * @return The cache key of this app, created on first use.
+     * @throws IOException If there is none and none could be created.
+     */
+    public static synchronized SecretKey getKey(Context context) throws IOException {
+        File file = new File(context.getFilesDir(), KEY_FILE);
+        if (file.exists()) {
+            try {
+                return read(file);
+            } catch (GeneralSecurityException e) {
+                Log.w(TAG, "Unable to recover the cache key, creating a new one", e);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read the cache key, creating a new one", e);
+            }
+        }
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(KEY_BITS);
+            SecretKey key = generator.generateKey();
+            write(file, key.getEncoded());
+            return key;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to create the cache key: " + e);
+        }
+    }
+
+    private static SecretKey read(File file) throws IOException, GeneralSecurityException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            int format = in.readByte();
+            byte[] data = new byte[in.readShort()];
+            in.readFully(data);
+            if (format == FORMAT_PLAIN) {
+                return new SecretKeySpec(data, "AES");
+            }
+            if (format == FORMAT_WRAPPED && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                byte[] iv = new byte[in.readShort()];
+                in.readFully(iv);
+                return new SecretKeySpec(unwrap(data, iv), "AES");
+            }
+            throw new IOException("Unknown key format " + format);
+        } finally {
+            VideoCache.closeQuietly(in);
+        }
+    }
+
+    private static void write(File file, byte[] key) throws IOException, GeneralSecurityException {
+        byte[] data = key;
+        byte[] iv = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, getWrappingKey());
+            data = cipher.doFinal(key);
+            iv = cipher.getIV();
+        }
+        // written aside and renamed, so a crash never leaves half a key
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeByte(iv != null ? FORMAT_WRAPPED : FORMAT_PLAIN);
+            out.writeShort(data.length);
+            out.write(data);
+            if (iv != null) {
+                out.writeShort(iv.length);
+                out.write(iv);
+            }
+        } finally {
+            VideoCache.closeQuietly(out);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to store the cache key in " + file);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static byte[] unwrap(byte[] data, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, getWrappingKey(), new GCMParameterSpec(GCM_TAG_BITS, iv));
+        return cipher.doFinal(data);
+    }
+
+    /*
+     * The keystore key the cache key is wrapped with, created if missing.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static SecretKey getWrappingKey() throws GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(KEYSTORE);
+        try {
+            store.load(null);
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Unable to load the keystore: " + e);
+        }
+        Key key = store.getKey(WRAP_ALIAS, null);
+        if (key instanceof SecretKey) {
+            return (SecretKey) key;
+        }
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(WRAP_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .build());
+        return generator.generateKey();
+    }
+}
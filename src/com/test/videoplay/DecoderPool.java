@@ -0,0 +1,156 @@
+package com.test.videoplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * Keeps the decoders of the previous video around so the next one can reuse
+ * them. Creating a codec allocates the hardware component and its buffers,
+ * which takes a good part of a clip-to-clip transition; a decoder left
+ * started for an identical format only needs a flush(), any other decoder
+ * of the same mime type a stop() and configure().
+ * <p>
+ * Not thread safe; used on the engine thread only.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class DecoderPool {
+    private static final String TAG = "DecoderPool";
+
+    // one video and one audio decoder is all a single player needs
+    private static final int MAX_IDLE = 2;
+
+    private static class Entry {
+        final MediaCodec codec;
+        final MediaFormat format;
+        Surface surface;
+        boolean started;
+
+        Entry(MediaCodec codec, MediaFormat format, Surface surface) {
+            this.codec = codec;
+            this.format = format;
+            this.surface = surface;
+            this.started = true;
+        }
+    }
+
+    // oldest first
+    private final List<Entry> mIdle = new ArrayList<Entry>();
+
+    /**
+     * @return A started decoder for format rendering to surface (null for
+     * ByteBuffer output), reused if possible.
+     */
+    public MediaCodec acquire(MediaFormat format, Surface surface) throws IOException {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        for (int i = mIdle.size() - 1; i >= 0; i--) {
+            Entry entry = mIdle.get(i);
+            if (!mime.equals(entry.format.getString(MediaFormat.KEY_MIME))) {
+                continue;
+            }
+            mIdle.remove(i);
+            try {
+                reuse(entry, format, surface);
+                return entry.codec;
+            } catch (IllegalStateException ex) {
+                Log.w(TAG, "Unable to reuse " + mime + " decoder", ex);
+            }
+            entry.codec.release();
+            break;
+        }
+        MediaCodec codec = MediaCodec.createDecoderByType(mime);
+        codec.configure(format, surface, null, 0);
+        codec.start();
+        return codec;
+    }
+
+    private void reuse(Entry entry, MediaFormat format, Surface surface) {
+        if (entry.started && sameConfig(entry.format, format)) {
+            if (surface == entry.surface) {
+                entry.codec.flush();
+                return;
+            }
+            if (surface != null && entry.surface != null
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                entry.codec.flush();
+                entry.codec.setOutputSurface(surface);
+                return;
+            }
+        }
+        if (entry.started) {
+            entry.codec.stop();
+        }
+        entry.codec.configure(format, surface, null, 0);
+        entry.codec.start();
+    }
+
+    /*
+     * Same stream parameters and codec specific data, so the decoder's
+     * current configuration decodes the new stream as is.
+     */
+    private static boolean sameConfig(MediaFormat a, MediaFormat b) {
+        return sameInteger(a, b, MediaFormat.KEY_WIDTH)
+                && sameInteger(a, b, MediaFormat.KEY_HEIGHT)
+                && sameInteger(a, b, MediaFormat.KEY_SAMPLE_RATE)
+                && sameInteger(a, b, MediaFormat.KEY_CHANNEL_COUNT)
+                && sameBuffer(a, b, "csd-0")
+                && sameBuffer(a, b, "csd-1");
+    }
+
+    private static boolean sameInteger(MediaFormat a, MediaFormat b, String key) {
+        if (!a.containsKey(key) || !b.containsKey(key)) {
+            return a.containsKey(key) == b.containsKey(key);
+        }
+        return a.getInteger(key) == b.getInteger(key);
+    }
+
+    private static boolean sameBuffer(MediaFormat a, MediaFormat b, String key) {
+        ByteBuffer x = a.containsKey(key) ? a.getByteBuffer(key) : null;
+        ByteBuffer y = b.containsKey(key) ? b.getByteBuffer(key) : null;
+        return x == null ? y == null : x.equals(y);
+    }
+
+    /**
+     * Hand back a decoder that is no longer needed, still configured with
+     * format and surface. It must not have failed.
+     */
+    public void recycle(MediaCodec codec, MediaFormat format, Surface surface) {
+        mIdle.add(new Entry(codec, format, surface));
+        while (mIdle.size() > MAX_IDLE) {
+            mIdle.remove(0).codec.release();
+        }
+    }
+
+    /**
+     * The surface is going away; decoders rendering to it are stopped and
+     * have to be configured again before use.
+     */
+    public void detachSurface(Surface surface) {
+        for (int i = 0; i < mIdle.size(); i++) {
+            Entry entry = mIdle.get(i);
+            if (surface != null && entry.surface == surface && entry.started) {
+                entry.codec.stop();
+                entry.started = false;
+                entry.surface = null;
+            }
+        }
+    }
+
+    /**
+     * Release every idle decoder, e.g. on memory pressure.
+     */
+    public void clear() {
+        for (int i = 0; i < mIdle.size(); i++) {
+            mIdle.get(i).codec.release();
+        }
+        mIdle.clear();
+    }
+}
@@ -0,0 +1,210 @@
+package com.test.videoplay;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.view.Choreographer;
+import android.view.WindowManager;
+
+/**
+ * Watches the UI thread's frames with a Choreographer callback (API 16+)
+ * while a video plays: how long frames take, how many vsyncs were missed,
+ * and how many video frames made it to the screen meanwhile. Everything is
+ * split by whether the media controller was showing, which is where the
+ * popup's layout and animations would show up.
+ * <p>
+ * All of it runs on the UI thread and allocates nothing per frame.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class FrameMonitor implements Choreographer.FrameCallback {
+    // frame time buckets in whole ms around multiples of a 60Hz vsync, and
+    // the 8ms of a 120Hz one; a frame on time lands at or just below 16
+    private static final long[] FRAME_TIME_BOUNDS = {
+        8, 12, 16, 20, 25, 33, 50, 66, 100, 200, 500, 1000,
+    };
+
+    /**
+     * What the monitor needs to know about the view, asked every frame.
+     */
+    public interface Host {
+        /**
+         * @return Whether to keep watching; the monitor stops when this
+         * turns false.
+         */
+        boolean isPlaying();
+        boolean isControllerShowing();
+        /**
+         * @return Video frames rendered so far by the current surface or
+         * decoder, or -1 if the render path cannot tell.
+         */
+        long getVideoFrameCount();
+    }
+
+    /**
+     * Frame numbers for one controller state.
+     */
+    public static class Stats {
+        /** Frames drawn. */
+        public long frames;
+        /** Vsyncs passed over between those frames. */
+        public long droppedFrames;
+        /** Frames that missed at least one vsync. */
+        public long jankyFrames;
+        /** Time covered by the frames. */
+        public long totalMs;
+        /** The longest frame. */
+        public long maxFrameMs;
+        /** Video frames rendered during that time, -1 if unknown. */
+        public long videoFrames = -1;
+        // accumulated precisely, totalMs is filled in by set()
+        long totalNanos;
+
+        public float getAverageFrameMs() {
+            return frames > 0 ? (float) totalMs / frames : 0;
+        }
+
+        /**
+         * @return The delivered video frame rate, or -1 if unknown.
+         */
+        public float getVideoFps() {
+            return videoFrames >= 0 && totalMs > 0 ? videoFrames * 1000f / totalMs : -1;
+        }
+
+        void set(Stats other) {
+            frames = other.frames;
+            droppedFrames = other.droppedFrames;
+            jankyFrames = other.jankyFrames;
+            totalNanos = other.totalNanos;
+            totalMs = other.totalNanos / 1000000;
+            maxFrameMs = other.maxFrameMs;
+            videoFrames = other.videoFrames;
+        }
+
+        @Override
+        public String toString() {
+            return frames + " frames, " + droppedFrames + " dropped, " + jankyFrames + " janky, avg "
+                    + getAverageFrameMs() + "ms, max " + maxFrameMs + "ms, video "
+                    + getVideoFps() + "fps";
+        }
+    }
+
+    private final Host mHost;
+    private final Choreographer mChoreographer;
+    private final long mVsyncNanos;
+    private final Stats mControllerShown = new Stats();
+    private final Stats mControllerHidden = new Stats();
+    private final LatencyHistogram mFrameTimes = new LatencyHistogram(FRAME_TIME_BOUNDS);
+    // whether a frame callback is posted
+    private boolean mRunning;
+    private long mLastFrameNanos;
+    private long mLastVideoFrames;
+
+    /**
+     * Call on the UI thread.
+     */
+    public FrameMonitor(Context context, Host host) {
+        mHost = host;
+        mChoreographer = Choreographer.getInstance();
+        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        float refreshRate = wm.getDefaultDisplay().getRefreshRate();
+        mVsyncNanos = (long) (1000000000L / (refreshRate > 0 ? refreshRate : 60));
+    }
+
+    /**
+     * Start watching, if not already; stops by itself once the host no
+     * longer plays.
+     */
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mLastFrameNanos = 0;
+        mChoreographer.postFrameCallback(this);
+    }
+
+    public void stop() {
+        if (mRunning) {
+            mRunning = false;
+            mChoreographer.removeFrameCallback(this);
+        }
+    }
+
+    public void doFrame(long frameTimeNanos) {
+        if (!mHost.isPlaying()) {
+            mRunning = false;
+            return;
+        }
+        long videoFrames = mHost.getVideoFrameCount();
+        if (mLastFrameNanos > 0) {
+            long nanos = frameTimeNanos - mLastFrameNanos;
+            long ms = nanos / 1000000;
+            // a frame on time is one vsync after the last one
+            long missed = Math.max(0, (nanos + mVsyncNanos / 2) / mVsyncNanos - 1);
+            Stats stats = mHost.isControllerShowing() ? mControllerShown : mControllerHidden;
+            stats.frames++;
+            stats.totalNanos += nanos;
+            stats.droppedFrames += missed;
+            if (missed > 0) {
+                stats.jankyFrames++;
+            }
+            stats.maxFrameMs = Math.max(stats.maxFrameMs, ms);
+            if (videoFrames >= 0 && mLastVideoFrames >= 0) {
+                // a new surface or decoder counts from 0 again
+                long rendered = videoFrames >= mLastVideoFrames
+                        ? videoFrames - mLastVideoFrames : videoFrames;
+                stats.videoFrames = Math.max(stats.videoFrames, 0) + rendered;
+            }
+            mFrameTimes.record(ms);
+        }
+        mLastFrameNanos = frameTimeNanos;
+        mLastVideoFrames = videoFrames;
+        mChoreographer.postFrameCallback(this);
+    }
+
+    /**
+     * Call on the UI thread.
+     */
+    public Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    public static class Snapshot {
+        public final Stats controllerShown = new Stats();
+        public final Stats controllerHidden = new Stats();
+        /** The distribution of frame times, both controller states together. */
+        public final LatencyHistogram.Snapshot frameTimes;
+
+        Snapshot(FrameMonitor monitor) {
+            controllerShown.set(monitor.mControllerShown);
+            controllerHidden.set(monitor.mControllerHidden);
+            frameTimes = monitor.mFrameTimes.getSnapshot();
+        }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("controller_shown", toJson(controllerShown));
+            json.put("controller_hidden", toJson(controllerHidden));
+            json.put("frame_times", frameTimes.toJson());
+            return json;
+        }
+
+        private static JSONObject toJson(Stats stats) throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("frames", stats.frames);
+            json.put("dropped", stats.droppedFrames);
+            json.put("janky", stats.jankyFrames);
+            json.put("total_ms", stats.totalMs);
+            json.put("max_frame_ms", stats.maxFrameMs);
+            json.put("avg_frame_ms", stats.getAverageFrameMs());
+            if (stats.videoFrames >= 0) {
+                json.put("video_frames", stats.videoFrames);
+                json.put("video_fps", stats.getVideoFps());
+            }
+            return json;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.test.videoplay;
+
+import java.util.Arrays;
+
+/**
+ * The presentation times of a video's sync samples (keyframes). Seeking to one
+ * of these times costs a single decode, while seeking anywhere else makes the
+ * decoder start at the preceding keyframe and decode its way forward.
+ */
+public class KeyframeIndex {
+    private final int[] mTimesMs;
+
+    public KeyframeIndex(long[] syncSamplesUs) {
+        mTimesMs = new int[syncSamplesUs.length];
+        for (int i = 0; i < syncSamplesUs.length; i++) {
+            // round up: a seek to a time just before a keyframe would start
+            // decoding at the previous one
+            mTimesMs[i] = (int) ((syncSamplesUs[i] + 999) / 1000);
+        }
+        Arrays.sort(mTimesMs);
+    }
+
+    /**
+     * @return The index for the video track described by info, or null if
+     * every sample is a keyframe or the container did not say.
+     */
+    public static KeyframeIndex from(Mp4Parser.Info info) {
+        if (info == null || info.syncSamplesUs == null || info.syncSamplesUs.length == 0) {
+            return null;
+        }
+        return new KeyframeIndex(info.syncSamplesUs);
+    }
+
+    public int size() {
+        return mTimesMs.length;
+    }
+
+    public int getTime(int index) {
+        return mTimesMs[index];
+    }
+
+    /**
+     * @return The last keyframe at or before msec, or -1 if there is none.
+     */
+    public int floor(int msec) {
+        int i = Arrays.binarySearch(mTimesMs, msec);
+        if (i >= 0) {
+            return mTimesMs[i];
+        }
+        i = -i - 2;
+        return i >= 0 ? mTimesMs[i] : -1;
+    }
+
+    /**
+     * @return The first keyframe at or after msec, or -1 if there is none.
+     */
+    public int ceiling(int msec) {
+        int i = Arrays.binarySearch(mTimesMs, msec);
+        if (i >= 0) {
+            return mTimesMs[i];
+        }
+        i = -i - 1;
+        return i < mTimesMs.length ? mTimesMs[i] : -1;
+    }
+
+    /**
+     * @return The keyframe closest to msec.
+     */
+    public int nearest(int msec) {
+        int before = floor(msec);
+        int after = ceiling(msec);
+        if (before < 0) {
+            return after;
+        }
+        if (after < 0) {
+            return before;
+        }
+        return msec - before <= after - msec ? before : after;
+    }
+}
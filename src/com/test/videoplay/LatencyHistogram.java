@@ -0,0 +1,128 @@
+package com.test.videoplay;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counts durations in fixed millisecond buckets, 1-2-5 steps unless given
+ * others. Recording is a couple of atomic increments: no lock and no
+ * allocation, so it can sit on any hot path and be shared between threads.
+ */
+public class LatencyHistogram {
+    private static final long[] DEFAULT_BOUNDS = {
+        10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000,
+    };
+
+    // upper bounds in ms; the last bucket takes everything above
+    private final long[] mBounds;
+    private final AtomicLongArray mBuckets;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(DEFAULT_BOUNDS);
+    }
+
+    /**
+     * @param bounds The buckets' inclusive upper bounds in ms, ascending; one
+     * more bucket takes everything above the last.
+     */
+    public LatencyHistogram(long[] bounds) {
+        mBounds = bounds.clone();
+        mBuckets = new AtomicLongArray(mBounds.length + 1);
+    }
+
+    public void record(long ms) {
+        int bucket = 0;
+        while (bucket < mBounds.length && ms > mBounds[bucket]) {
+            bucket++;
+        }
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSum.addAndGet(ms);
+        long max = mMax.get();
+        while (ms > max && !mMax.compareAndSet(max, ms)) {
+            max = mMax.get();
+        }
+    }
+
+    public Snapshot getSnapshot() {
+        long[] buckets = new long[mBuckets.length()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return new Snapshot(mBounds, buckets, mCount.get(), mSum.get(), mMax.get());
+    }
+
+    /**
+     * The histogram at one point in time. Fields are read one by one, so a
+     * snapshot taken while others record may be off by those records.
+     */
+    public static class Snapshot {
+        public final long count;
+        public final long sumMs;
+        public final long maxMs;
+        private final long[] mBounds;
+        private final long[] mBuckets;
+
+        Snapshot(long[] bounds, long[] buckets, long count, long sumMs, long maxMs) {
+            mBounds = bounds;
+            mBuckets = buckets;
+            this.count = count;
+            this.sumMs = sumMs;
+            this.maxMs = maxMs;
+        }
+
+        public long getMeanMs() {
+            return count > 0 ? sumMs / count : 0;
+        }
+
+        /**
+         * @param percentile 0 to 100.
+         * @return The upper bound of the bucket holding that percentile, or
+         * the maximum for the open ended last bucket.
+         */
+        public long getPercentileMs(double percentile) {
+            long total = 0;
+            for (long n : mBuckets) {
+                total += n;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && mBuckets[i] > 0) {
+                    return i < mBounds.length ? Math.min(mBounds[i], maxMs) : maxMs;
+                }
+            }
+            return maxMs;
+        }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("sum_ms", sumMs);
+            json.put("mean_ms", getMeanMs());
+            json.put("max_ms", maxMs);
+            json.put("p50_ms", getPercentileMs(50));
+            json.put("p90_ms", getPercentileMs(90));
+            json.put("p99_ms", getPercentileMs(99));
+            JSONObject buckets = new JSONObject();
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (mBuckets[i] > 0) {
+                    buckets.put(i < mBounds.length ? "le_" + mBounds[i] : "gt_" + mBounds[i - 1],
+                            mBuckets[i]);
+                }
+            }
+            json.put("buckets", buckets);
+            return json;
+        }
+    }
+}
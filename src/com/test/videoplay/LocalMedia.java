@@ -0,0 +1,120 @@
+package com.test.videoplay;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaExtractor;
+import android.media.MediaMetadataRetriever;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+
+/**
+ * Media bundled in the APK, addressed as file:///android_asset/... or
+ * android.resource://... uris. Such media is played straight from the APK
+ * through an AssetFileDescriptor: the player reads the (fd, offset, length)
+ * slice of the zip entry, nothing is extracted or copied.
+ * <p>
+ * That only works for entries stored uncompressed. aapt stores .mp4, .3gp,
+ * .m4a, .webm and the other media extensions uncompressed by default; other
+ * extensions need to be added to its no-compress list.
+ */
+public class LocalMedia {
+    private static final String ASSET_PREFIX = "/android_asset/";
+
+    public static Uri assetUri(String path) {
+        return Uri.parse("file://" + ASSET_PREFIX + path);
+    }
+
+    public static Uri resourceUri(Context context, int resId) {
+        return Uri.parse(ContentResolver.SCHEME_ANDROID_RESOURCE + "://"
+                + context.getPackageName() + "/" + resId);
+    }
+
+    /**
+     * @return Whether uri points into the APK.
+     */
+    public static boolean isPackaged(Uri uri) {
+        String scheme = uri.getScheme();
+        if (scheme == null || "file".equals(scheme)) {
+            String path = uri.getPath();
+            return path != null && path.startsWith(ASSET_PREFIX);
+        }
+        return ContentResolver.SCHEME_ANDROID_RESOURCE.equals(scheme);
+    }
+
+    /**
+     * @return The slice of the APK holding uri, or null if uri does not
+     * point into the APK. The caller closes it.
+     * @throws FileNotFoundException If there is no such entry or it is
+     * stored compressed.
+     */
+    public static AssetFileDescriptor openFd(Context context, Uri uri) throws IOException {
+        if (!isPackaged(uri)) {
+            return null;
+        }
+        AssetFileDescriptor afd;
+        if (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())) {
+            afd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+        } else {
+            afd = context.getAssets().openFd(uri.getPath().substring(ASSET_PREFIX.length()));
+        }
+        if (afd == null) {
+            throw new FileNotFoundException(uri + " is stored compressed");
+        }
+        return afd;
+    }
+
+    /**
+     * Like MediaPlayer.setDataSource(Context, Uri, Map), but bundled media is
+     * read through its file descriptor.
+     */
+    public static void setDataSource(MediaPlayer player, Context context, Uri uri,
+            Map<String, String> headers) throws IOException {
+        AssetFileDescriptor afd = openFd(context, uri);
+        if (afd == null) {
+            player.setDataSource(context, uri, headers);
+            return;
+        }
+        try {
+            // the player dups the descriptor, so ours can be closed right away
+            player.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+        } finally {
+            afd.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public static void setDataSource(MediaExtractor extractor, Context context, Uri uri,
+            Map<String, String> headers) throws IOException {
+        AssetFileDescriptor afd = openFd(context, uri);
+        if (afd == null) {
+            extractor.setDataSource(context, uri, headers);
+            return;
+        }
+        try {
+            extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+        } finally {
+            afd.close();
+        }
+    }
+
+    public static void setDataSource(MediaMetadataRetriever retriever, Context context, Uri uri)
+            throws IOException {
+        AssetFileDescriptor afd = openFd(context, uri);
+        if (afd == null) {
+            retriever.setDataSource(context, uri);
+            return;
+        }
+        try {
+            retriever.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+        } finally {
+            afd.close();
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package com.test.videoplay;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
@@ -26,6 +30,11 @@ import android.view.WindowManager;
 
 public class MainActivity extends Activity {
 
+	private static final long VIDEO_CACHE_SIZE = 200 * 1024 * 1024;
+	private static final int THUMBNAIL_INTERVAL = 5000;
+	// keep the prepared player this long while the app is in the background
+	private static final int RETAIN_PLAYER_TIMEOUT = 60 * 1000;
+
 	private MyVideoView mVideoView;
 	private MyMediaController mController;
 
@@ -41,10 +50,15 @@ public class MainActivity extends Activity {
 	private float mBrightness = -1f;
 	private GestureDetector mGestureDetector;
 	private AudioManager mAudioManager;
+	private VideoCacheProxy mCacheProxy;
+	private RangeDownloader mRangeDownloader;
+	private ThumbnailLoader mThumbnailLoader;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		PlaybackTrace.mark(PlaybackTrace.ACTIVITY_CREATE);
+		PlaybackTrace.beginSection("MainActivity.onCreate");
 		setContentView(R.layout.activity_main);
 
 		mController = new MyMediaController(this);
@@ -52,6 +66,19 @@ public class MainActivity extends Activity {
 		mController.setAnchorView(mVideoView);
 		mVideoView.setMediaController(mController);
 
+		mCacheProxy = new VideoCacheProxy(new VideoCache(new File(getCacheDir(), "video"), VIDEO_CACHE_SIZE));
+		try {
+			mCacheProxy.start();
+			mVideoView.setCacheProxy(mCacheProxy);
+			mRangeDownloader = new RangeDownloader(mCacheProxy);
+			mVideoView.setRangeDownloader(mRangeDownloader);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		mThumbnailLoader = new ThumbnailLoader(this, new File(getCacheDir(), "thumbs"), THUMBNAIL_INTERVAL);
+		mVideoView.setThumbnailLoader(mThumbnailLoader);
+		mVideoView.setRetainPlayerTimeout(RETAIN_PLAYER_TIMEOUT);
+
 		try {
 			playMedia();
 		} catch (IOException e) {
@@ -78,7 +105,7 @@ public class MainActivity extends Activity {
 		DisplayMetrics dm = getResources().getDisplayMetrics();
 		mLandscapeWidth = dm.heightPixels;
 		mLandscapeHeight = dm.widthPixels;
-		
+		PlaybackTrace.endSection();
 	}
 	
 	@Override
@@ -193,11 +220,22 @@ public class MainActivity extends Activity {
 
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		mVideoView.onTrimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		mVideoView.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+	}
+
 	@Override
 	public void onConfigurationChanged(Configuration newConfig) {
 		super.onConfigurationChanged(newConfig);
-		System.out.println("xxx pre-videowidth : " + mVideoView.getWidth());
-		System.out.println("xxx pre-videoheight : " + mVideoView.getHeight());
+		PlaybackTrace.mark(PlaybackTrace.CONFIGURATION_CHANGED, mVideoView.getWidth(), mVideoView.getHeight());
 		if (newConfig.orientation == Configuration.ORIENTATION_LANDSCAPE) {
 			if (mPotraitHeight == 0) {
 				mPotraitHeight = mVideoView.getHeight();
@@ -206,29 +244,38 @@ public class MainActivity extends Activity {
 		} else if (newConfig.orientation == Configuration.ORIENTATION_PORTRAIT) {
 			mVideoView.setVideoScale(mLandscapeHeight, mPotraitHeight);
 		}
-		System.out.println("xxx after-videowidth : " + mVideoView.getWidth());
-		System.out.println("xxx after-videoheight : " + mVideoView.getHeight());
+		// the new size shows up as VIEW_RESIZED once the view is laid out
 	}
 
 	private void playMedia() throws IOException {
 		// mVideoView.setVideoURI(Uri.parse("http://flv.bn.netease.com/videolib3/1208/13/WZHyF2463/WZHyF2463-mobile.mp4"));
 		// mVideoView.setVideoURI(Uri.parse("http://flv.bn.netease.com/videolib3/1208/12/hTFnk8972/hTFnk8972-mobile.mp4"));
 
-		// mVideoView.setVideoURI(Uri.parse("file:///assets/WZHyF2463-mobile.mp4"));
-		// mVideoView.setVideoURI(Uri.parse("file:///assets/hTFnk8972-mobile.mp4"));
-		// mVideoView.setVideoPath("file:///assets/hTFnk8972-mobile.mp4");
+		// mVideoView.setVideoAsset("WZHyF2463-mobile.mp4");
+		// mVideoView.setVideoResource(R.raw.b);
 
-		// Uri uri = Uri.parse("android.resource://" + getPackageName() + "/"+
-		// R.raw.c);
-		// mVideoView.setVideoURI(uri);
+		// start in SD and move to HD once the link carries it
+		// mVideoView.setRenditions(RenditionLadder.fromPathSegments(
+		//		Uri.parse("http://flv.bn.netease.com/videolib3/1402/13/EyKrA3653/SD/EyKrA3653-mobile.mp4"),
+		//		"SD", new String[] { "SD", "HD" }, new int[] { 500000, 1200000 }));
 
-		mVideoView.setVideoURI(Uri.parse("http://110.18.245.9/37ada8e14cbfa12-1392289226-3721189064/data7/flv.bn.netease.com/videolib3/1402/13/EyKrA3653/SD/EyKrA3653-mobile.mp4"));
+		List<Uri> playlist = new ArrayList<Uri>();
+		playlist.add(Uri.parse("http://110.18.245.9/37ada8e14cbfa12-1392289226-3721189064/data7/flv.bn.netease.com/videolib3/1402/13/EyKrA3653/SD/EyKrA3653-mobile.mp4"));
+		playlist.add(Uri.parse("http://flv.bn.netease.com/videolib3/1208/13/WZHyF2463/WZHyF2463-mobile.mp4"));
+		playlist.add(Uri.parse("http://flv.bn.netease.com/videolib3/1208/12/hTFnk8972/hTFnk8972-mobile.mp4"));
+		mVideoView.setPlaylist(playlist, 0);
 		mVideoView.start();
 	}
 
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		mVideoView.stopPlayback();
+		mCacheProxy.stop();
+		if (mRangeDownloader != null) {
+			mRangeDownloader.shutdown();
+		}
+		mThumbnailLoader.release();
 	}
 
 	@Override
@@ -0,0 +1,139 @@
+package com.test.videoplay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Serves a local file or a complete cache entry from a memory mapping (API
+ * 23+). readAt() is a copy out of the page cache: no system call per read and
+ * no content resolution, and a seek is just a different offset.
+ * <p>
+ * For a cache entry the entry is held open until the player closes the
+ * source, so it cannot be evicted while it plays. Entries of an encrypted
+ * cache are mapped as they are on disk and each read decrypts just the bytes
+ * it returns, with a cipher owned by this source.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class MappedDataSource extends MediaDataSource {
+    private static final String TAG = "MappedDataSource";
+
+    // a MappedByteBuffer is int indexed, so big files are mapped in pieces
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final MappedByteBuffer[] mSegments;
+    private final long mLength;
+    private VideoCache.Entry mEntry;
+    private final AesCtrCipher mCipher;
+    private final long mNonce;
+
+    /**
+     * @return A source for uri if it is a local file or completely cached,
+     * null otherwise.
+     */
+    public static MappedDataSource open(Uri uri, VideoCacheProxy proxy) {
+        String scheme = uri.getScheme();
+        try {
+            if ((scheme == null || "file".equals(scheme)) && !LocalMedia.isPackaged(uri)) {
+                File file = new File(uri.getPath());
+                return file.isFile() ? new MappedDataSource(file, file.length(), null, null) : null;
+            }
+            if (proxy == null || !VideoCacheProxy.isProxyable(uri)) {
+                return null;
+            }
+            VideoCache cache = proxy.getCache();
+            if (!cache.isCached(uri.toString())) {
+                return null;
+            }
+            AesCtrCipher cipher = cache.isEncrypted() ? cache.newCipher() : null;
+            VideoCache.Entry entry = cache.open(uri.toString());
+            try {
+                if (entry.isComplete()) {
+                    MappedDataSource source = new MappedDataSource(entry.getDataFile(),
+                            entry.getLength(), entry, cipher);
+                    entry = null;
+                    return source;
+                }
+            } finally {
+                if (entry != null) {
+                    entry.close();
+                }
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to map " + uri, ex);
+        } catch (GeneralSecurityException ex) {
+            Log.w(TAG, "Unable to decrypt " + uri, ex);
+        }
+        return null;
+    }
+
+    private MappedDataSource(File file, long length, VideoCache.Entry entry, AesCtrCipher cipher)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            mLength = Math.min(length, channel.size());
+            mSegments = new MappedByteBuffer[(int) ((mLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < mSegments.length; i++) {
+                long start = (long) i * SEGMENT_SIZE;
+                mSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(SEGMENT_SIZE, mLength - start));
+            }
+        } finally {
+            // the mapping stays valid without the file
+            raf.close();
+        }
+        mEntry = entry;
+        mCipher = cipher;
+        mNonce = entry != null ? entry.getNonce() : 0;
+    }
+
+    /*
+     * Synchronized because the segments' positions and the cipher are
+     * shared; the player reads from one thread at a time, so this never
+     * contends.
+     */
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) {
+        if (position >= mLength) {
+            return -1;
+        }
+        int count = (int) Math.min(size, mLength - position);
+        int done = 0;
+        while (done < count) {
+            long at = position + done;
+            MappedByteBuffer segment = mSegments[(int) (at / SEGMENT_SIZE)];
+            int segmentOffset = (int) (at % SEGMENT_SIZE);
+            int n = Math.min(count - done, segment.limit() - segmentOffset);
+            segment.position(segmentOffset);
+            segment.get(buffer, offset + done, n);
+            done += n;
+        }
+        if (mCipher != null) {
+            mCipher.apply(mNonce, position, buffer, offset, count);
+        }
+        return count;
+    }
+
+    @Override
+    public long getSize() {
+        return mLength;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mEntry != null) {
+            mEntry.close();
+            mEntry = null;
+        }
+    }
+}
@@ -0,0 +1,818 @@
+package com.test.videoplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+/**
+ * Plays with MediaExtractor and MediaCodec (API 16+) instead of the opaque
+ * MediaPlayer, so buffering, frame dropping and A/V sync are under our
+ * control:
+ * <ul>
+ * <li>Each track has its own extractor and decoder. Input is queued only
+ * {@link #setPrefetchDepthMs(int)} ahead of the playback position.</li>
+ * <li>Codec buffer arrays, BufferInfos and the PCM staging array are
+ * allocated once per configuration and reused for every sample.</li>
+ * <li>Audio is the master clock while there is audio. Video frames more than
+ * {@link #LATE_THRESHOLD_US} behind it are dropped without rendering.</li>
+ * </ul>
+ * Everything runs on the engine thread, driven by a short tick while
+ * playing or seeking.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class MediaCodecEngine extends PlaybackEngine {
+    private static final String TAG = "MediaCodecEngine";
+
+    // video frames later than this are dropped instead of rendered
+    private static final long LATE_THRESHOLD_US = 40000;
+    // video frames due within this window are handed to the display
+    private static final long EARLY_WINDOW_US = 20000;
+    private static final int TICK_INTERVAL_MS = 5;
+    private static final int DEFAULT_PREFETCH_DEPTH_MS = 500;
+    // below this the decoders' reorder delay could starve them
+    private static final int MIN_PREFETCH_DEPTH_MS = 100;
+
+    /**
+     * @return Whether this engine can run on this device.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /*
+     * One elementary stream: its own extractor, so tracks are fed
+     * independently, and its decoder.
+     */
+    private static class Track {
+        final MediaExtractor extractor;
+        final MediaFormat format;
+        final String mime;
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        MediaCodec codec;
+        ByteBuffer[] inputBuffers;   // only used before API 21
+        ByteBuffer[] outputBuffers;  // only used before API 21
+        int pendingOutput = -1;      // dequeued, waiting for its time
+        boolean inputDone;
+        boolean outputDone;
+
+        Track(MediaExtractor extractor, MediaFormat format) {
+            this.extractor = extractor;
+            this.format = format;
+            this.mime = format.getString(MediaFormat.KEY_MIME);
+        }
+    }
+
+    private Track mVideo;
+    private Track mAudio;
+    // decoders of the previous video, reused by the next one
+    private final DecoderPool mDecoderPool = new DecoderPool();
+    // a failed decoder must not go back to the pool
+    private boolean mDecoderFailed;
+    private AudioTrack mAudioTrack;
+    private int mSampleRate;
+    private int mFrameSize;            // of the decoded audio
+    private boolean mDownmix;          // the device can't play its layout, fold it to stereo
+    private int mAudioBufferFrames;
+    private byte[] mAudioChunk = new byte[0];
+    private long mAudioStartUs = -1;   // pts of the first sample written since the last flush
+    private long mAudioHeadBase;
+    private long mAudioFramesWritten;
+    private boolean mAudioClock;
+
+    private Surface mSurface;
+    private Surface mVideoSurface;     // the one the video decoder renders to
+    private boolean mPlaying;
+    private long mPositionUs;          // while paused or seeking
+    private long mAnchorUs;            // wall clock mode: media time at mAnchorRealtimeUs
+    private long mAnchorRealtimeUs;
+    private long mSeekTargetUs = -1;   // frames before this are decoded but not shown
+    private boolean mNotifySeek;
+    private int mVideoWidth;
+    private int mVideoHeight;
+    private volatile int mPrefetchDepthMs = DEFAULT_PREFETCH_DEPTH_MS;
+    private volatile int mRenderedFrames;
+    private volatile int mDroppedFrames;
+
+    public MediaCodecEngine(Context context) {
+        super(context);
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_MEDIA_CODEC;
+    }
+
+    /**
+     * How far ahead of the playback position samples are read and queued
+     * into the decoders. More survives network hiccups, less uses less
+     * memory and starts faster.
+     */
+    public void setPrefetchDepthMs(int depthMs) {
+        mPrefetchDepthMs = Math.max(depthMs, MIN_PREFETCH_DEPTH_MS);
+    }
+
+    /**
+     * @return Video frames shown since the current video was opened.
+     */
+    public int getRenderedFrames() {
+        return mRenderedFrames;
+    }
+
+    /**
+     * @return Video frames dropped for being late since the current video
+     * was opened.
+     */
+    public int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    @Override
+    protected void handleOpen(Uri uri, Uri dataUri, Map<String, String> headers) {
+        mRenderedFrames = 0;
+        mDroppedFrames = 0;
+        mPositionUs = 0;
+        mDecoderFailed = false;
+        try {
+            long durationUs = 0;
+            MediaExtractor probe = new MediaExtractor();
+            setDataSource(probe, uri, dataUri, headers);
+            for (int i = 0; i < probe.getTrackCount(); i++) {
+                MediaFormat format = probe.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mVideo == null && mime.startsWith("video/")) {
+                    mVideo = selectTrack(probe, i, uri, dataUri, headers);
+                } else if (mAudio == null && mime.startsWith("audio/")) {
+                    mAudio = selectTrack(probe, i, uri, dataUri, headers);
+                }
+                if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                    durationUs = Math.max(durationUs, format.getLong(MediaFormat.KEY_DURATION));
+                }
+            }
+            if (mVideo == null && mAudio == null) {
+                probe.release();
+                throw new IOException("No playable track in " + uri);
+            }
+            if (mAudio != null) {
+                mAudio.codec = mDecoderPool.acquire(mAudio.format, null);
+                configured(mAudio);
+                createAudioTrack(mAudio.format);
+            }
+            if (mVideo != null) {
+                mVideoWidth = mVideo.format.getInteger(MediaFormat.KEY_WIDTH);
+                mVideoHeight = mVideo.format.getInteger(MediaFormat.KEY_HEIGHT);
+                if (mSurface != null) {
+                    createVideoDecoder();
+                }
+            }
+            notifyPrepared((int) (durationUs / 1000), mVideoWidth, mVideoHeight);
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to open content: " + uri, ex);
+            handleRelease();
+            notifyError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+        } catch (IllegalArgumentException ex) {
+            Log.w(TAG, "Unable to open content: " + uri, ex);
+            handleRelease();
+            notifyError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+        } catch (IllegalStateException ex) {
+            Log.w(TAG, "Unable to decode content: " + uri, ex);
+            mDecoderFailed = true;
+            handleRelease();
+            notifyError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+        }
+    }
+
+    /*
+     * The first track found reuses the probing extractor, every further one
+     * gets its own.
+     */
+    private Track selectTrack(MediaExtractor probe, int index, Uri uri, Uri dataUri,
+            Map<String, String> headers) throws IOException {
+        MediaExtractor extractor = probe;
+        if (mVideo != null || mAudio != null) {
+            extractor = new MediaExtractor();
+            setDataSource(extractor, uri, dataUri, headers);
+        }
+        extractor.selectTrack(index);
+        return new Track(extractor, probe.getTrackFormat(index));
+    }
+
+    /*
+     * Local files and complete cache entries are read from a memory mapping,
+     * one per extractor.
+     */
+    private void setDataSource(MediaExtractor extractor, Uri uri, Uri dataUri,
+            Map<String, String> headers) throws IOException {
+        // the extractor connects and parses the header right here
+        PlaybackTrace.markFirst(PlaybackTrace.SET_DATA_SOURCE);
+        PlaybackTrace.beginSection("setDataSource");
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                MappedDataSource source = MappedDataSource.open(uri, getCacheProxy());
+                if (source != null) {
+                    extractor.setDataSource(source);
+                    return;
+                }
+            }
+            LocalMedia.setDataSource(extractor, mContext, dataUri, headers);
+        } finally {
+            PlaybackTrace.endSection();
+            PlaybackTrace.markFirst(PlaybackTrace.DATA_SOURCE_SET);
+        }
+    }
+
+    /*
+     * The track's codec was just configured and started; forget whatever
+     * state its previous use left behind.
+     */
+    @SuppressWarnings("deprecation")
+    private static void configured(Track track) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            track.inputBuffers = track.codec.getInputBuffers();
+            track.outputBuffers = track.codec.getOutputBuffers();
+        }
+        track.pendingOutput = -1;
+        track.inputDone = false;
+        track.outputDone = false;
+    }
+
+    private void createVideoDecoder() throws IOException {
+        mVideo.codec = mDecoderPool.acquire(mVideo.format, mSurface);
+        mVideoSurface = mSurface;
+        configured(mVideo);
+    }
+
+    private void releaseVideoDecoder() {
+        if (mVideo != null && mVideo.codec != null) {
+            recycle(mVideo.codec, mVideo.format, mVideoSurface);
+            mVideo.codec = null;
+        }
+    }
+
+    private void recycle(MediaCodec codec, MediaFormat format, Surface surface) {
+        if (mDecoderFailed) {
+            codec.release();
+        } else {
+            mDecoderPool.recycle(codec, format, surface);
+        }
+    }
+
+    private void createAudioTrack(MediaFormat format) {
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        int channelConfig = getChannelMask(channels);
+        mFrameSize = 2 * channels;
+        int minBufferSize = channelConfig == 0 ? AudioTrack.ERROR_BAD_VALUE
+                : AudioTrack.getMinBufferSize(mSampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        mDownmix = minBufferSize <= 0 && channels > 2;
+        if (mDownmix) {
+            // multichannel output is up to the device, before Lollipop mostly absent
+            channelConfig = AudioFormat.CHANNEL_OUT_STEREO;
+            minBufferSize = AudioTrack.getMinBufferSize(mSampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT);
+        }
+        int bufferSize = 4 * minBufferSize;
+        mAudioBufferFrames = bufferSize / (mDownmix ? 4 : mFrameSize);
+        mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, mSampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+        mAudioStartUs = -1;
+        mAudioClock = true;
+    }
+
+    /*
+     * The output mask for the decoders' channel order, which is the WAVE
+     * one: front left, front right, centre, LFE, back left, back right, ...
+     * 0 if there is none.
+     */
+    @SuppressWarnings("deprecation")
+    private static int getChannelMask(int channels) {
+        switch (channels) {
+            case 1:
+                return AudioFormat.CHANNEL_OUT_MONO;
+            case 2:
+                return AudioFormat.CHANNEL_OUT_STEREO;
+            case 3:
+                return AudioFormat.CHANNEL_OUT_STEREO | AudioFormat.CHANNEL_OUT_FRONT_CENTER;
+            case 4:
+                return AudioFormat.CHANNEL_OUT_QUAD;
+            case 5:
+                return AudioFormat.CHANNEL_OUT_QUAD | AudioFormat.CHANNEL_OUT_FRONT_CENTER;
+            case 6:
+                return AudioFormat.CHANNEL_OUT_5POINT1;
+            case 7:
+                return AudioFormat.CHANNEL_OUT_5POINT1 | AudioFormat.CHANNEL_OUT_BACK_CENTER;
+            case 8:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                        ? AudioFormat.CHANNEL_OUT_7POINT1_SURROUND : AudioFormat.CHANNEL_OUT_7POINT1;
+            default:
+                return 0;
+        }
+    }
+
+    /*
+     * Fold interleaved 16 bit frames of channels channels down to stereo in
+     * place: the front pair, plus the centre at -3dB where the layout has
+     * one. The rest is dropped.
+     *
+     * @return The stereo size.
+     */
+    private static int downmix(byte[] pcm, int size, int channels) {
+        boolean center = channels != 4;
+        int out = 0;
+        for (int in = 0; in + 2 * channels <= size; in += 2 * channels) {
+            int c = center ? getSample(pcm, in + 4) * 181 >> 8 : 0;
+            int left = getSample(pcm, in) + c;
+            int right = getSample(pcm, in + 2) + c;
+            putSample(pcm, out, left);
+            putSample(pcm, out + 2, right);
+            out += 4;
+        }
+        return out;
+    }
+
+    private static int getSample(byte[] pcm, int offset) {
+        return (short) ((pcm[offset] & 0xff) | (pcm[offset + 1] << 8));
+    }
+
+    private static void putSample(byte[] pcm, int offset, int sample) {
+        sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        pcm[offset] = (byte) sample;
+        pcm[offset + 1] = (byte) (sample >> 8);
+    }
+
+    private void releaseAudioTrack() {
+        if (mAudioTrack != null) {
+            mAudioTrack.release();
+            mAudioTrack = null;
+        }
+        mAudioClock = false;
+    }
+
+    @Override
+    protected void handleSetDisplay(SurfaceHolder holder) {
+        handleSetSurface(holder != null ? holder.getSurface() : null);
+    }
+
+    @Override
+    protected void handleSetSurface(Surface surface) {
+        if (surface == mSurface) {
+            return;
+        }
+        Surface oldSurface = mSurface;
+        mSurface = surface;
+        releaseVideoDecoder();
+        if (surface == null) {
+            // pooled decoders can't keep rendering to a surface that is gone
+            mDecoderPool.detachSurface(oldSurface);
+        }
+        if (mVideo == null) {
+            return;
+        }
+        if (surface != null && isPrepared()) {
+            try {
+                createVideoDecoder();
+                // decode up to where we are, so the new surface shows the current frame
+                seek(currentTimeUs(), MyMediaController.MediaPlayerControl.SEEK_ACCURATE, false);
+            } catch (IOException ex) {
+                Log.w(TAG, "Unable to create video decoder", ex);
+                fail();
+            }
+        }
+    }
+
+    @Override
+    protected void handleStart() {
+        boolean videoDone = isVideoDone();
+        boolean audioDone = mAudio == null || mAudio.outputDone;
+        boolean ended = (mVideo != null && mVideo.outputDone) || (mAudio != null && mAudio.outputDone);
+        if (videoDone && audioDone && ended) {
+            // started again after completion, play from the beginning
+            seek(0, -1, false);
+        }
+        mPlaying = true;
+        mAnchorUs = mPositionUs;
+        mAnchorRealtimeUs = nowUs();
+        if (mAudioTrack != null) {
+            mAudioTrack.play();
+        }
+        scheduleTick();
+    }
+
+    @Override
+    protected void handlePause() {
+        mPositionUs = currentTimeUs();
+        mPlaying = false;
+        if (mAudioTrack != null) {
+            mAudioTrack.pause();
+        }
+    }
+
+    @Override
+    protected void handleSeek(long pos, int mode) {
+        seek(pos * 1000, mode, true);
+    }
+
+    private void seek(long timeUs, int mode, boolean notify) {
+        int extractorMode = mode == MyMediaController.MediaPlayerControl.SEEK_FAST
+                ? MediaExtractor.SEEK_TO_CLOSEST_SYNC : MediaExtractor.SEEK_TO_PREVIOUS_SYNC;
+        long targetUs = timeUs;
+        if (mVideo != null) {
+            mVideo.extractor.seekTo(timeUs, extractorMode);
+            if (mode != MyMediaController.MediaPlayerControl.SEEK_ACCURATE) {
+                // land on the keyframe itself instead of decoding past it
+                targetUs = Math.max(mVideo.extractor.getSampleTime(), 0);
+            }
+            flush(mVideo);
+        }
+        if (mAudio != null) {
+            mAudio.extractor.seekTo(targetUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            flush(mAudio);
+            mAudioTrack.pause();
+            mAudioTrack.flush();
+            mAudioHeadBase = mAudioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            mAudioStartUs = -1;
+            mAudioClock = true;
+            if (mPlaying) {
+                mAudioTrack.play();
+            }
+        }
+        mPositionUs = targetUs;
+        if (mVideo != null && mVideo.codec != null) {
+            // finished in drainVideo() once the target frame is shown
+            mSeekTargetUs = targetUs;
+            mNotifySeek = notify;
+            scheduleTick();
+        } else {
+            mAnchorUs = targetUs;
+            mAnchorRealtimeUs = nowUs();
+            if (notify) {
+                notifySeekComplete();
+            }
+        }
+    }
+
+    private void flush(Track track) {
+        if (track.codec != null) {
+            track.codec.flush();
+        }
+        track.pendingOutput = -1;
+        track.inputDone = false;
+        track.outputDone = false;
+    }
+
+    @Override
+    protected void handleRelease() {
+        getHandler().removeCallbacks(mTick);
+        mPlaying = false;
+        mSeekTargetUs = -1;
+        releaseAudioTrack();
+        releaseTrack(mVideo);
+        releaseTrack(mAudio);
+        mVideo = null;
+        mAudio = null;
+    }
+
+    private void releaseTrack(Track track) {
+        if (track == null) {
+            return;
+        }
+        if (track.codec != null) {
+            recycle(track.codec, track.format, track == mVideo ? mVideoSurface : null);
+            track.codec = null;
+        }
+        track.extractor.release();
+    }
+
+    @Override
+    protected void handleTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mDecoderPool.clear();
+        }
+    }
+
+    @Override
+    protected void handleQuit() {
+        mDecoderPool.clear();
+    }
+
+    @Override
+    protected int getPlayerPosition() {
+        return (int) (currentTimeUs() / 1000);
+    }
+
+    @Override
+    protected boolean isPlayerPlaying() {
+        return mPlaying;
+    }
+
+    private static long nowUs() {
+        return SystemClock.elapsedRealtime() * 1000;
+    }
+
+    /*
+     * The master clock: the audio playback head while there is audio,
+     * otherwise the wall clock.
+     */
+    private long currentTimeUs() {
+        if (!mPlaying || mSeekTargetUs >= 0) {
+            return mPositionUs;
+        }
+        if (mAudioClock) {
+            if (mAudioStartUs < 0) {
+                // nothing audible yet, hold video until audio flows
+                return mPositionUs;
+            }
+            long head = mAudioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            return mAudioStartUs + (head - mAudioHeadBase) * 1000000L / mSampleRate;
+        }
+        return mAnchorUs + nowUs() - mAnchorRealtimeUs;
+    }
+
+    /*
+     * Whether the video track has nothing more to show. Without a decoder,
+     * while there is no surface, that is up to the audio track; a clip
+     * without one waits for the surface instead of completing on the spot.
+     */
+    private boolean isVideoDone() {
+        if (mVideo == null) {
+            return true;
+        }
+        if (mVideo.codec == null) {
+            return mAudio != null;
+        }
+        return mVideo.outputDone;
+    }
+
+    private void scheduleTick() {
+        getHandler().removeCallbacks(mTick);
+        getHandler().postDelayed(mTick, TICK_INTERVAL_MS);
+    }
+
+    private Runnable mTick = new Runnable() {
+        public void run() {
+            try {
+                long nowUs = currentTimeUs();
+                if (mVideo != null && mVideo.codec != null) {
+                    feed(mVideo, nowUs);
+                    drainVideo();
+                }
+                if (mAudio != null) {
+                    feed(mAudio, nowUs);
+                    drainAudio();
+                }
+            } catch (IllegalStateException ex) {
+                Log.w(TAG, "Decoder failed", ex);
+                fail();
+                return;
+            }
+            boolean videoDone = isVideoDone();
+            boolean audioDone = mAudio == null || mAudio.outputDone;
+            if (videoDone && audioDone && mSeekTargetUs < 0) {
+                if (mPlaying) {
+                    mPositionUs = currentTimeUs();
+                    mPlaying = false;
+                    notifyCompletion();
+                }
+            } else if (mPlaying || mSeekTargetUs >= 0) {
+                scheduleTick();
+            }
+        }
+    };
+
+    private void fail() {
+        mDecoderFailed = true;
+        getHandler().removeCallbacks(mTick);
+        mPlaying = false;
+        notifyError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+    }
+
+    /*
+     * Queue samples until the decoder has no free input buffer or the
+     * track is mPrefetchDepthMs ahead of the clock.
+     */
+    private void feed(Track track, long nowUs) {
+        long limitUs = Math.max(nowUs, mSeekTargetUs) + mPrefetchDepthMs * 1000L;
+        while (!track.inputDone) {
+            long sampleTimeUs = track.extractor.getSampleTime();
+            if (sampleTimeUs > limitUs) {
+                return;
+            }
+            int index = track.codec.dequeueInputBuffer(0);
+            if (index < 0) {
+                return;
+            }
+            ByteBuffer buffer = getInputBuffer(track, index);
+            int size = sampleTimeUs < 0 ? -1 : track.extractor.readSampleData(buffer, 0);
+            if (size < 0) {
+                track.codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                track.inputDone = true;
+                return;
+            }
+            track.codec.queueInputBuffer(index, 0, size, sampleTimeUs, 0);
+            track.extractor.advance();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static ByteBuffer getInputBuffer(Track track, int index) {
+        if (track.inputBuffers != null) {
+            ByteBuffer buffer = track.inputBuffers[index];
+            buffer.clear();
+            return buffer;
+        }
+        return track.codec.getInputBuffer(index);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static ByteBuffer getOutputBuffer(Track track, int index) {
+        if (track.outputBuffers != null) {
+            return track.outputBuffers[index];
+        }
+        return track.codec.getOutputBuffer(index);
+    }
+
+    /*
+     * @return The index of the next decoded buffer of track, or -1 if none
+     * is ready. Format and buffer changes are handled on the way.
+     */
+    @SuppressWarnings("deprecation")
+    private int nextOutput(Track track) {
+        if (track.pendingOutput >= 0) {
+            return track.pendingOutput;
+        }
+        while (true) {
+            int index = track.codec.dequeueOutputBuffer(track.info, 0);
+            if (index >= 0) {
+                track.pendingOutput = index;
+                return index;
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                track.outputBuffers = track.codec.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                onOutputFormatChanged(track, track.codec.getOutputFormat());
+            } else {
+                return -1;
+            }
+        }
+    }
+
+    private void onOutputFormatChanged(Track track, MediaFormat format) {
+        if (track == mVideo) {
+            int width = format.getInteger(MediaFormat.KEY_WIDTH);
+            int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+            if (format.containsKey("crop-left") && format.containsKey("crop-right")) {
+                width = format.getInteger("crop-right") + 1 - format.getInteger("crop-left");
+            }
+            if (format.containsKey("crop-top") && format.containsKey("crop-bottom")) {
+                height = format.getInteger("crop-bottom") + 1 - format.getInteger("crop-top");
+            }
+            if (width != mVideoWidth || height != mVideoHeight) {
+                mVideoWidth = width;
+                mVideoHeight = height;
+                notifyVideoSizeChanged(width, height);
+            }
+        } else if (format.getInteger(MediaFormat.KEY_SAMPLE_RATE) != mSampleRate
+                || 2 * format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != mFrameSize) {
+            releaseAudioTrack();
+            createAudioTrack(format);
+            if (mPlaying) {
+                mAudioTrack.play();
+            }
+        }
+    }
+
+    private void drainVideo() {
+        while (!mVideo.outputDone) {
+            int index = nextOutput(mVideo);
+            if (index < 0) {
+                return;
+            }
+            MediaCodec.BufferInfo info = mVideo.info;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mVideo.codec.releaseOutputBuffer(index, false);
+                mVideo.pendingOutput = -1;
+                mVideo.outputDone = true;
+                if (mSeekTargetUs >= 0) {
+                    // seeked past the last frame
+                    finishSeek(mSeekTargetUs);
+                }
+                return;
+            }
+            long ptsUs = info.presentationTimeUs;
+            if (mSeekTargetUs >= 0) {
+                boolean reached = ptsUs >= mSeekTargetUs;
+                mVideo.codec.releaseOutputBuffer(index, reached);
+                mVideo.pendingOutput = -1;
+                if (reached) {
+                    onFrameRendered();
+                    finishSeek(ptsUs);
+                }
+                continue;
+            }
+            if (!mPlaying) {
+                return;
+            }
+            long earlyUs = ptsUs - currentTimeUs();
+            if (earlyUs > EARLY_WINDOW_US) {
+                return;
+            }
+            if (earlyUs < -LATE_THRESHOLD_US) {
+                mVideo.codec.releaseOutputBuffer(index, false);
+                mDroppedFrames++;
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                // let the compositor show it on the right vsync
+                mVideo.codec.releaseOutputBuffer(index, System.nanoTime() + earlyUs * 1000);
+                onFrameRendered();
+            } else {
+                mVideo.codec.releaseOutputBuffer(index, true);
+                onFrameRendered();
+            }
+            mVideo.pendingOutput = -1;
+        }
+    }
+
+    private void onFrameRendered() {
+        if (mRenderedFrames++ == 0) {
+            // what MediaPlayer reports on API 17+
+            notifyInfo(MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START, 0);
+        }
+    }
+
+    private void finishSeek(long positionUs) {
+        mSeekTargetUs = -1;
+        mPositionUs = positionUs;
+        mAnchorUs = positionUs;
+        mAnchorRealtimeUs = nowUs();
+        if (mNotifySeek) {
+            mNotifySeek = false;
+            notifySeekComplete();
+        }
+    }
+
+    private void drainAudio() {
+        while (!mAudio.outputDone) {
+            int index = nextOutput(mAudio);
+            if (index < 0) {
+                return;
+            }
+            MediaCodec.BufferInfo info = mAudio.info;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mAudio.codec.releaseOutputBuffer(index, false);
+                mAudio.pendingOutput = -1;
+                mAudio.outputDone = true;
+                // no more audio to follow; carry on with the wall clock
+                mAnchorUs = currentTimeUs();
+                mAnchorRealtimeUs = nowUs();
+                mAudioClock = false;
+                return;
+            }
+            if (mSeekTargetUs >= 0 && info.presentationTimeUs < mSeekTargetUs) {
+                mAudio.codec.releaseOutputBuffer(index, false);
+                mAudio.pendingOutput = -1;
+                continue;
+            }
+            if (!mPlaying || mSeekTargetUs >= 0) {
+                return;
+            }
+            int frames = info.size / mFrameSize;
+            long head = mAudioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            long queued = mAudioStartUs < 0 ? 0 : mAudioFramesWritten - (head - mAudioHeadBase);
+            if (queued + frames > mAudioBufferFrames) {
+                // a blocking write would stall the engine thread
+                return;
+            }
+            if (mAudioChunk.length < info.size) {
+                mAudioChunk = new byte[info.size];
+            }
+            ByteBuffer buffer = getOutputBuffer(mAudio, index);
+            buffer.position(info.offset);
+            buffer.limit(info.offset + info.size);
+            buffer.get(mAudioChunk, 0, info.size);
+            if (mAudioStartUs < 0) {
+                mAudioStartUs = info.presentationTimeUs;
+                mAudioHeadBase = head;
+                mAudioFramesWritten = 0;
+            }
+            int size = mDownmix ? downmix(mAudioChunk, info.size, mFrameSize / 2) : info.size;
+            mAudioTrack.write(mAudioChunk, 0, size);
+            mAudioFramesWritten += frames;
+            mAudio.codec.releaseOutputBuffer(index, false);
+            mAudio.pendingOutput = -1;
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package com.test.videoplay;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+/**
+ * Plays with android.media.MediaPlayer. Neighbours of the current playlist
+ * item are kept prepared by a {@link PlaylistPreloader}, and opening one of
+ * them takes over its standby player. On API 16+ the next video is chained
+ * with setNextMediaPlayer() for gapless playback; its audio follows without
+ * a gap, but the display can only move over once the framework reports the
+ * end of the previous video, so the first frames of the next one may not
+ * be shown. Another encoding of the
+ * current video is prepared and positioned on a standby player of its own
+ * and swapped in once it is ready, see {@link #prepareSwitch(Uri, Uri, Map, int)}.
+ */
+public class MediaPlayerEngine extends PlaybackEngine {
+    private static final String TAG = "MediaPlayerEngine";
+
+    private MediaPlayer mPlayer;
+    private PlaylistPreloader mPreloader;
+    // follows mPlayer once it is prepared, see handleSetNext()
+    private MediaPlayer mNextPlayer;
+    private boolean mNextChained;
+    // another encoding of the video, see handlePrepareSwitch()
+    private MediaPlayer mSwitchPlayer;
+    private Uri mSwitchUri;
+    private int mSwitchPosition;
+    private int mSwitchSeekingTo = -1;
+    private boolean mSwitchPrepared;
+    private boolean mSwitchReady;
+    // the display, handed on to the next player when it takes over
+    private SurfaceHolder mHolder;
+    private Surface mSurface;
+
+    public MediaPlayerEngine(Context context) {
+        super(context);
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_MEDIA_PLAYER;
+    }
+
+    @Override
+    public boolean canSwitch() {
+        return true;
+    }
+
+    private PlaylistPreloader getPreloader() {
+        if (mPreloader == null) {
+            mPreloader = new PlaylistPreloader(mContext);
+        }
+        return mPreloader;
+    }
+
+    @Override
+    protected void handleOpen(Uri uri, Uri dataUri, Map<String, String> headers) {
+        PlaylistPreloader.Standby standby = mPreloader != null ? mPreloader.take(uri) : null;
+        try {
+            if (standby != null) {
+                mPlayer = standby.player;
+                installListeners(mPlayer);
+                if (standby.prepared) {
+                    // onPrepared already fired while nobody was listening
+                    mPreparedListener.onPrepared(mPlayer);
+                }
+            } else {
+                mPlayer = new MediaPlayer();
+                installListeners(mPlayer);
+                setDataSource(mPlayer, uri, dataUri, headers);
+                mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+                mPlayer.prepareAsync();
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to open content: " + uri, ex);
+            notifyError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+        } catch (IllegalArgumentException ex) {
+            Log.w(TAG, "Unable to open content: " + uri, ex);
+            notifyError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+        }
+    }
+
+    /*
+     * Local files and complete cache entries are read from a memory mapping
+     * instead of through the content resolver or the proxy.
+     */
+    private void setDataSource(MediaPlayer mp, Uri uri, Uri dataUri, Map<String, String> headers)
+            throws IOException {
+        PlaybackTrace.markFirst(PlaybackTrace.SET_DATA_SOURCE);
+        PlaybackTrace.beginSection("setDataSource");
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                MappedDataSource source = MappedDataSource.open(uri, getCacheProxy());
+                if (source != null) {
+                    mp.setDataSource(source);
+                    return;
+                }
+            }
+            LocalMedia.setDataSource(mp, mContext, dataUri, headers);
+        } finally {
+            PlaybackTrace.endSection();
+            PlaybackTrace.markFirst(PlaybackTrace.DATA_SOURCE_SET);
+        }
+    }
+
+    private void installListeners(MediaPlayer mp) {
+        mp.setOnPreparedListener(mPreparedListener);
+        mp.setOnVideoSizeChangedListener(mSizeChangedListener);
+        mp.setOnCompletionListener(mCompletionListener);
+        mp.setOnErrorListener(mErrorListener);
+        mp.setOnInfoListener(mInfoListener);
+        mp.setOnBufferingUpdateListener(mBufferingUpdateListener);
+        mp.setOnSeekCompleteListener(mSeekCompleteListener);
+    }
+
+    @Override
+    protected void handleSetDisplay(SurfaceHolder holder) {
+        mHolder = holder;
+        mSurface = null;
+        if (mPlayer != null) {
+            try {
+                mPlayer.setDisplay(holder);
+            } catch (IllegalArgumentException ex) {
+                // the surface went away again while the command was queued
+                Log.w(TAG, "Unable to set display", ex);
+            }
+        }
+    }
+
+    @Override
+    protected void handleSetSurface(Surface surface) {
+        mHolder = null;
+        mSurface = surface;
+        if (mPlayer != null) {
+            try {
+                mPlayer.setSurface(surface);
+            } catch (IllegalArgumentException ex) {
+                Log.w(TAG, "Unable to set surface", ex);
+            }
+        }
+    }
+
+    @Override
+    protected void handleSetNext(Uri uri, Uri dataUri, Map<String, String> headers) {
+        releaseNext();
+        if (uri == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        PlaylistPreloader.Standby standby = mPreloader != null ? mPreloader.take(uri) : null;
+        try {
+            if (standby != null) {
+                mNextPlayer = standby.player;
+                mNextPlayer.setOnPreparedListener(mNextPreparedListener);
+                mNextPlayer.setOnErrorListener(mNextErrorListener);
+                if (standby.prepared) {
+                    chainNext();
+                }
+            } else {
+                mNextPlayer = new MediaPlayer();
+                mNextPlayer.setOnPreparedListener(mNextPreparedListener);
+                mNextPlayer.setOnErrorListener(mNextErrorListener);
+                setDataSource(mNextPlayer, uri, dataUri, headers);
+                mNextPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+                mNextPlayer.prepareAsync();
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to open next content: " + uri, ex);
+            releaseNext();
+        } catch (IllegalArgumentException ex) {
+            Log.w(TAG, "Unable to open next content: " + uri, ex);
+            releaseNext();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void chainNext() {
+        if (mPlayer != null) {
+            mPlayer.setNextMediaPlayer(mNextPlayer);
+            mNextChained = true;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void releaseNext() {
+        if (mNextPlayer != null) {
+            if (mNextChained && mPlayer != null) {
+                mPlayer.setNextMediaPlayer(null);
+            }
+            mNextPlayer.release();
+            mNextPlayer = null;
+            mNextChained = false;
+        }
+    }
+
+    @Override
+    protected void handlePrepareSwitch(Uri uri, Uri dataUri, Map<String, String> headers,
+            int positionMs) {
+        if (uri != null && uri.equals(mSwitchUri)) {
+            mSwitchPosition = positionMs;
+            mSwitchReady = false;
+            if (mSwitchPrepared && mSwitchSeekingTo < 0) {
+                seekSwitch();
+            }
+            return;
+        }
+        releaseSwitch();
+        if (uri == null) {
+            return;
+        }
+        mSwitchPlayer = new MediaPlayer();
+        mSwitchUri = uri;
+        mSwitchPosition = positionMs;
+        mSwitchPlayer.setOnPreparedListener(mSwitchPreparedListener);
+        mSwitchPlayer.setOnSeekCompleteListener(mSwitchSeekCompleteListener);
+        mSwitchPlayer.setOnErrorListener(mSwitchErrorListener);
+        try {
+            setDataSource(mSwitchPlayer, uri, dataUri, headers);
+            mSwitchPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            mSwitchPlayer.prepareAsync();
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to open content: " + uri, ex);
+            releaseSwitch();
+        } catch (IllegalArgumentException ex) {
+            Log.w(TAG, "Unable to open content: " + uri, ex);
+            releaseSwitch();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void seekSwitch() {
+        mSwitchSeekingTo = mSwitchPosition;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // the exact frame, so the switch doesn't jump
+            mSwitchPlayer.seekTo(mSwitchPosition, MediaPlayer.SEEK_CLOSEST);
+        } else {
+            mSwitchPlayer.seekTo(mSwitchPosition);
+        }
+    }
+
+    private void releaseSwitch() {
+        if (mSwitchPlayer != null) {
+            mSwitchPlayer.release();
+            mSwitchPlayer = null;
+        }
+        mSwitchUri = null;
+        mSwitchSeekingTo = -1;
+        mSwitchPrepared = false;
+        mSwitchReady = false;
+    }
+
+    @Override
+    protected boolean handleSwitch() {
+        if (!mSwitchReady || mPlayer == null) {
+            return false;
+        }
+        releaseNext();
+        MediaPlayer old = mPlayer;
+        boolean playing = old.isPlaying();
+        mPlayer = mSwitchPlayer;
+        mSwitchPlayer = null;
+        releaseSwitch();
+        // a surface takes one player at a time
+        old.setDisplay(null);
+        installListeners(mPlayer);
+        attachDisplay(mPlayer);
+        if (playing) {
+            mPlayer.start();
+        }
+        old.release();
+        notifyVideoSizeChanged(mPlayer.getVideoWidth(), mPlayer.getVideoHeight());
+        return true;
+    }
+
+    private void attachDisplay(MediaPlayer mp) {
+        try {
+            if (mHolder != null) {
+                mp.setDisplay(mHolder);
+            } else if (mSurface != null) {
+                mp.setSurface(mSurface);
+            }
+        } catch (IllegalArgumentException ex) {
+            Log.w(TAG, "Unable to set display", ex);
+        }
+    }
+
+    /*
+     * mPlayer reached its end and the framework already started the chained
+     * player; make it the current one. A surface takes one player at a
+     * time, so the new one could not get the display before now and its
+     * first frames went nowhere.
+     */
+    private void advance() {
+        final MediaPlayer finished = mPlayer;
+        mPlayer = mNextPlayer;
+        mNextPlayer = null;
+        mNextChained = false;
+        // frees the display for the new player
+        finished.setDisplay(null);
+        installListeners(mPlayer);
+        attachDisplay(mPlayer);
+        // not from inside its own onCompletion()
+        getHandler().post(new Runnable() {
+            public void run() {
+                finished.release();
+            }
+        });
+        notifyNextStarted(mPlayer.getDuration(), mPlayer.getVideoWidth(), mPlayer.getVideoHeight());
+    }
+
+    @Override
+    protected void handleStart() {
+        mPlayer.start();
+    }
+
+    @Override
+    protected void handlePause() {
+        mPlayer.pause();
+    }
+
+    @Override
+    protected void handleSeek(long pos, int mode) {
+        boolean hasModes = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+        if (mode == MyMediaController.MediaPlayerControl.SEEK_FAST && hasModes) {
+            mPlayer.seekTo(pos, MediaPlayer.SEEK_CLOSEST_SYNC);
+        } else if (mode == MyMediaController.MediaPlayerControl.SEEK_ACCURATE && hasModes) {
+            mPlayer.seekTo(pos, MediaPlayer.SEEK_CLOSEST);
+        } else {
+            // before API 26 there is no way to ask for the exact frame; most
+            // players land on the preceding keyframe, so SEEK_ACCURATE is
+            // only as good as the platform default here
+            mPlayer.seekTo((int) pos);
+        }
+    }
+
+    @Override
+    protected void handleRelease() {
+        releaseNext();
+        releaseSwitch();
+        if (mPlayer != null) {
+            mPlayer.reset();
+            mPlayer.release();
+            mPlayer = null;
+        }
+    }
+
+    @Override
+    protected void handlePreload(List<Uri> uris) {
+        getPreloader().preload(uris);
+    }
+
+    @Override
+    protected void handleSetCacheProxy(VideoCacheProxy proxy) {
+        getPreloader().setCacheProxy(proxy);
+    }
+
+    @Override
+    protected void handleTrimMemory(int level) {
+        if (mPreloader != null && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // standby players hold decoders and buffers of their own
+            mPreloader.release();
+        }
+    }
+
+    @Override
+    protected void handleQuit() {
+        if (mPreloader != null) {
+            mPreloader.release();
+        }
+    }
+
+    @Override
+    protected int getPlayerPosition() {
+        return mPlayer.getCurrentPosition();
+    }
+
+    @Override
+    protected boolean isPlayerPlaying() {
+        return mPlayer.isPlaying();
+    }
+
+    private MediaPlayer.OnPreparedListener mPreparedListener = new MediaPlayer.OnPreparedListener() {
+        public void onPrepared(MediaPlayer mp) {
+            notifyPrepared(mp.getDuration(), mp.getVideoWidth(), mp.getVideoHeight());
+        }
+    };
+
+    private MediaPlayer.OnVideoSizeChangedListener mSizeChangedListener =
+        new MediaPlayer.OnVideoSizeChangedListener() {
+            public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+                notifyVideoSizeChanged(width, height);
+            }
+    };
+
+    private MediaPlayer.OnCompletionListener mCompletionListener =
+        new MediaPlayer.OnCompletionListener() {
+        public void onCompletion(MediaPlayer mp) {
+            if (mNextChained) {
+                advance();
+            } else {
+                notifyCompletion();
+            }
+        }
+    };
+
+    private MediaPlayer.OnPreparedListener mNextPreparedListener =
+        new MediaPlayer.OnPreparedListener() {
+        public void onPrepared(MediaPlayer mp) {
+            if (mp == mNextPlayer) {
+                chainNext();
+            }
+        }
+    };
+
+    private MediaPlayer.OnErrorListener mNextErrorListener = new MediaPlayer.OnErrorListener() {
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            if (mp == mNextPlayer) {
+                // the current video simply completes instead
+                Log.w(TAG, "Next player failed: " + what + "," + extra);
+                releaseNext();
+            }
+            return true;
+        }
+    };
+
+    private MediaPlayer.OnPreparedListener mSwitchPreparedListener =
+        new MediaPlayer.OnPreparedListener() {
+        public void onPrepared(MediaPlayer mp) {
+            if (mp == mSwitchPlayer) {
+                mSwitchPrepared = true;
+                seekSwitch();
+            }
+        }
+    };
+
+    private MediaPlayer.OnSeekCompleteListener mSwitchSeekCompleteListener =
+        new MediaPlayer.OnSeekCompleteListener() {
+        public void onSeekComplete(MediaPlayer mp) {
+            if (mp != mSwitchPlayer) {
+                return;
+            }
+            if (mSwitchSeekingTo != mSwitchPosition) {
+                // moved on while seeking
+                seekSwitch();
+                return;
+            }
+            mSwitchSeekingTo = -1;
+            mSwitchReady = true;
+            notifySwitchReady();
+        }
+    };
+
+    private MediaPlayer.OnErrorListener mSwitchErrorListener = new MediaPlayer.OnErrorListener() {
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            if (mp == mSwitchPlayer) {
+                // the current player simply carries on
+                Log.w(TAG, "Standby player failed: " + what + "," + extra);
+                releaseSwitch();
+            }
+            return true;
+        }
+    };
+
+    private MediaPlayer.OnErrorListener mErrorListener = new MediaPlayer.OnErrorListener() {
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            notifyError(what, extra);
+            return true;
+        }
+    };
+
+    private MediaPlayer.OnInfoListener mInfoListener = new MediaPlayer.OnInfoListener() {
+        public boolean onInfo(MediaPlayer mp, int what, int extra) {
+            notifyInfo(what, extra);
+            return true;
+        }
+    };
+
+    private MediaPlayer.OnBufferingUpdateListener mBufferingUpdateListener =
+        new MediaPlayer.OnBufferingUpdateListener() {
+        public void onBufferingUpdate(MediaPlayer mp, int percent) {
+            notifyBufferingUpdate(percent);
+        }
+    };
+
+    private MediaPlayer.OnSeekCompleteListener mSeekCompleteListener =
+        new MediaPlayer.OnSeekCompleteListener() {
+        public void onSeekComplete(MediaPlayer mp) {
+            notifySeekComplete();
+        }
+    };
+}
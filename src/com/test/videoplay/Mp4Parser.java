@@ -0,0 +1,599 @@
+package com.test.videoplay;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+
+/**
+ * Reads the header of an MP4 (ISO base media) file without decoding anything.
+ * Only the top level box headers and the moov box are read, so for a remote
+ * file this costs a couple of small range requests, no matter where the moov
+ * box is stored.
+ * <p>
+ * The result is available long before MediaPlayer reports onPrepared, which
+ * lets the view size itself and the controller enable seeking early.
+ */
+public class Mp4Parser {
+    // moov boxes beyond this size are not worth parsing up front
+    private static final int MAX_MOOV_SIZE = 16 * 1024 * 1024;
+
+    private static final int BOX_FTYP = fourcc("ftyp");
+    private static final int BOX_MOOV = fourcc("moov");
+    private static final int BOX_MDAT = fourcc("mdat");
+    private static final int BOX_MVHD = fourcc("mvhd");
+    private static final int BOX_TRAK = fourcc("trak");
+    private static final int BOX_TKHD = fourcc("tkhd");
+    private static final int BOX_EDTS = fourcc("edts");
+    private static final int BOX_ELST = fourcc("elst");
+    private static final int BOX_MDIA = fourcc("mdia");
+    private static final int BOX_MDHD = fourcc("mdhd");
+    private static final int BOX_HDLR = fourcc("hdlr");
+    private static final int BOX_MINF = fourcc("minf");
+    private static final int BOX_STBL = fourcc("stbl");
+    private static final int BOX_STTS = fourcc("stts");
+    private static final int BOX_STSS = fourcc("stss");
+    private static final int BOX_CTTS = fourcc("ctts");
+    private static final int HANDLER_VIDEO = fourcc("vide");
+
+    /**
+     * What the header tells us about a file.
+     */
+    public static class Info {
+        /** Movie duration, or -1 if the header does not say. */
+        public long durationUs = -1;
+        public int videoWidth;
+        public int videoHeight;
+        /**
+         * Presentation times of the video track's sync samples in ascending
+         * order, or null if every sample is a sync sample.
+         */
+        public long[] syncSamplesUs;
+        /** Number of samples in the video track. */
+        public int videoSampleCount;
+        /** Whether moov precedes mdat, so playback can start progressively. */
+        public boolean faststart;
+        public long moovOffset;
+        public long moovSize;
+
+        public int getDurationMs() {
+            return durationUs >= 0 ? (int) (durationUs / 1000) : -1;
+        }
+    }
+
+    /**
+     * Positional read access to the bytes of a file.
+     */
+    public interface Source {
+        /**
+         * @return The length in bytes, or -1 if not known.
+         */
+        long length() throws IOException;
+
+        /**
+         * Read up to dst.remaining() bytes at position into dst.
+         *
+         * @return The number of bytes read, or -1 at the end of the source.
+         */
+        int read(long position, ByteBuffer dst) throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Open a source for a local file, asset, resource, content or http(s) uri.
+     */
+    public static Source open(Context context, Uri uri) throws IOException {
+        AssetFileDescriptor packaged = LocalMedia.openFd(context, uri);
+        if (packaged != null) {
+            return new FileSource(packaged);
+        }
+        String scheme = uri.getScheme();
+        if (scheme == null || "file".equals(scheme)) {
+            return new FileSource(new File(uri.getPath()));
+        } else if ("http".equals(scheme) || "https".equals(scheme)) {
+            return new HttpSource(uri.toString());
+        } else if ("content".equals(scheme)) {
+            AssetFileDescriptor afd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+            if (afd == null) {
+                throw new IOException("Unable to open " + uri);
+            }
+            return new FileSource(afd);
+        }
+        throw new IOException("Unsupported uri " + uri);
+    }
+
+    /**
+     * Walk the top level boxes of source and parse its moov box.
+     *
+     * @throws IOException If the source cannot be read or is not an MP4 file.
+     */
+    public static Info parse(Source source) throws IOException {
+        Info info = new Info();
+        long length = source.length();
+        long position = 0;
+        boolean seenMdat = false;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        while (length < 0 || position + 8 <= length) {
+            header.clear();
+            if (readFully(source, position, header) < 8) {
+                break;
+            }
+            header.flip();
+            long size = header.getInt() & 0xffffffffL;
+            int type = header.getInt();
+            int headerSize = 8;
+            if (size == 1) {
+                size = header.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                if (length < 0) {
+                    break;
+                }
+                size = length - position;
+            }
+            if (size < headerSize) {
+                throw new IOException("Invalid box size " + size + " at " + position);
+            }
+            if (position == 0 && type != BOX_FTYP && type != BOX_MOOV) {
+                throw new IOException("Not an MP4 file");
+            }
+            if (type == BOX_MOOV) {
+                if (size > MAX_MOOV_SIZE) {
+                    throw new IOException("moov box too large: " + size);
+                }
+                ByteBuffer moov = ByteBuffer.allocate((int) size - headerSize);
+                if (readFully(source, position + headerSize, moov) < moov.capacity()) {
+                    throw new IOException("Truncated moov box");
+                }
+                moov.flip();
+                info.faststart = !seenMdat;
+                info.moovOffset = position;
+                info.moovSize = size;
+                parseMoov(moov, info);
+                return info;
+            } else if (type == BOX_MDAT) {
+                seenMdat = true;
+            }
+            position += size;
+        }
+        throw new IOException("No moov box found");
+    }
+
+    private static void parseMoov(ByteBuffer moov, Info info) {
+        BoxIterator boxes = new BoxIterator(moov);
+        while (boxes.next()) {
+            if (boxes.type == BOX_MVHD) {
+                ByteBuffer mvhd = boxes.payload;
+                int version = mvhd.get() & 0xff;
+                skip(mvhd, 3 + (version == 1 ? 16 : 8));
+                long timescale = mvhd.getInt() & 0xffffffffL;
+                long duration = version == 1 ? mvhd.getLong() : mvhd.getInt() & 0xffffffffL;
+                if (timescale > 0 && duration != (version == 1 ? -1L : 0xffffffffL)) {
+                    info.durationUs = duration * 1000000L / timescale;
+                }
+            } else if (boxes.type == BOX_TRAK) {
+                Track track = new Track();
+                parseTrak(boxes.payload, track);
+                if (track.handler == HANDLER_VIDEO && info.videoWidth == 0) {
+                    info.videoWidth = track.width;
+                    info.videoHeight = track.height;
+                    info.videoSampleCount = track.sampleCount();
+                    info.syncSamplesUs = track.syncSampleTimesUs();
+                }
+            }
+        }
+    }
+
+    private static void parseTrak(ByteBuffer trak, Track track) {
+        BoxIterator boxes = new BoxIterator(trak);
+        while (boxes.next()) {
+            if (boxes.type == BOX_TKHD) {
+                ByteBuffer tkhd = boxes.payload;
+                int version = tkhd.get() & 0xff;
+                // flags, times, track id, reserved, duration, reserved,
+                // layer, alternate group, volume, reserved, matrix
+                skip(tkhd, 3 + (version == 1 ? 32 : 20) + 8 + 8 + 36);
+                track.width = tkhd.getInt() >>> 16;
+                track.height = tkhd.getInt() >>> 16;
+            } else if (boxes.type == BOX_MDIA) {
+                parseMdia(boxes.payload, track);
+            } else if (boxes.type == BOX_EDTS) {
+                BoxIterator edts = new BoxIterator(boxes.payload);
+                while (edts.next()) {
+                    if (edts.type == BOX_ELST) {
+                        parseElst(edts.payload, track);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void parseElst(ByteBuffer elst, Track track) {
+        int version = elst.get() & 0xff;
+        skip(elst, 3);
+        int count = elst.getInt();
+        for (int i = 0; i < count; i++) {
+            skip(elst, version == 1 ? 8 : 4); // segment duration
+            long mediaTime = version == 1 ? elst.getLong() : elst.getInt();
+            skip(elst, 4); // media rate
+            // -1 marks an empty edit; the first real one says where the
+            // track's timeline starts
+            if (mediaTime >= 0) {
+                track.editMediaTime = mediaTime;
+                return;
+            }
+        }
+    }
+
+    private static void parseMdia(ByteBuffer mdia, Track track) {
+        BoxIterator boxes = new BoxIterator(mdia);
+        while (boxes.next()) {
+            if (boxes.type == BOX_MDHD) {
+                ByteBuffer mdhd = boxes.payload;
+                int version = mdhd.get() & 0xff;
+                skip(mdhd, 3 + (version == 1 ? 16 : 8));
+                track.timescale = mdhd.getInt() & 0xffffffffL;
+            } else if (boxes.type == BOX_HDLR) {
+                ByteBuffer hdlr = boxes.payload;
+                skip(hdlr, 8);
+                track.handler = hdlr.getInt();
+            } else if (boxes.type == BOX_MINF) {
+                BoxIterator minf = new BoxIterator(boxes.payload);
+                while (minf.next()) {
+                    if (minf.type == BOX_STBL) {
+                        parseStbl(minf.payload, track);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void parseStbl(ByteBuffer stbl, Track track) {
+        BoxIterator boxes = new BoxIterator(stbl);
+        while (boxes.next()) {
+            if (boxes.type == BOX_STTS) {
+                ByteBuffer stts = boxes.payload;
+                skip(stts, 4);
+                int count = stts.getInt();
+                track.sttsCounts = new int[count];
+                track.sttsDeltas = new int[count];
+                for (int i = 0; i < count; i++) {
+                    track.sttsCounts[i] = stts.getInt();
+                    track.sttsDeltas[i] = stts.getInt();
+                }
+            } else if (boxes.type == BOX_CTTS) {
+                ByteBuffer ctts = boxes.payload;
+                skip(ctts, 4);
+                int count = ctts.getInt();
+                track.cttsCounts = new int[count];
+                track.cttsOffsets = new int[count];
+                for (int i = 0; i < count; i++) {
+                    track.cttsCounts[i] = ctts.getInt();
+                    // unsigned in version 0, but writers put negative
+                    // offsets there too
+                    track.cttsOffsets[i] = ctts.getInt();
+                }
+            } else if (boxes.type == BOX_STSS) {
+                ByteBuffer stss = boxes.payload;
+                skip(stss, 4);
+                int count = stss.getInt();
+                track.syncSamples = new int[count];
+                for (int i = 0; i < count; i++) {
+                    track.syncSamples[i] = stss.getInt();
+                }
+            }
+        }
+    }
+
+    /**
+     * The bits of a trak box we care about.
+     */
+    private static class Track {
+        int handler;
+        int width;
+        int height;
+        long timescale;
+        int[] sttsCounts;
+        int[] sttsDeltas;
+        int[] cttsCounts; // null if decode and presentation order match
+        int[] cttsOffsets;
+        long editMediaTime; // media time shown at the start of the movie
+        int[] syncSamples; // 1 based sample numbers, null if all are sync
+
+        int sampleCount() {
+            int total = 0;
+            if (sttsCounts != null) {
+                for (int count : sttsCounts) {
+                    total += count;
+                }
+            }
+            return total;
+        }
+
+        /**
+         * Presentation times of the sync samples: the stts decode time plus
+         * the ctts composition offset, shifted by the edit list.
+         */
+        long[] syncSampleTimesUs() {
+            if (syncSamples == null || sttsCounts == null || timescale <= 0) {
+                return null;
+            }
+            long[] times = new long[syncSamples.length];
+            int found = 0;
+            int entry = 0;
+            int remainingInEntry = sttsCounts.length > 0 ? sttsCounts[0] : 0;
+            long sample = 1;
+            long time = 0;
+            int cttsEntry = 0;
+            long cttsEnd = cttsCounts != null && cttsCounts.length > 0
+                    ? cttsCounts[0] & 0xffffffffL : 0;
+            for (int i = 0; i < syncSamples.length; i++) {
+                long target = syncSamples[i] & 0xffffffffL;
+                // advance the decode clock to the target sample
+                while (sample < target && entry < sttsCounts.length) {
+                    long step = Math.min(remainingInEntry, target - sample);
+                    time += step * sttsDeltas[entry];
+                    sample += step;
+                    remainingInEntry -= step;
+                    if (remainingInEntry == 0 && ++entry < sttsCounts.length) {
+                        remainingInEntry = sttsCounts[entry];
+                    }
+                }
+                if (sample != target) {
+                    break;
+                }
+                long offset = 0;
+                if (cttsCounts != null) {
+                    // cttsEnd is the last sample covered by cttsEntry
+                    while (cttsEnd < target && ++cttsEntry < cttsCounts.length) {
+                        cttsEnd += cttsCounts[cttsEntry] & 0xffffffffL;
+                    }
+                    if (cttsEntry < cttsCounts.length) {
+                        offset = cttsOffsets[cttsEntry];
+                    }
+                }
+                long presentation = Math.max(0, time + offset - editMediaTime);
+                times[found++] = presentation * 1000000L / timescale;
+            }
+            if (found < times.length) {
+                long[] truncated = new long[found];
+                System.arraycopy(times, 0, truncated, 0, found);
+                return truncated;
+            }
+            return times;
+        }
+    }
+
+    /**
+     * Iterates over the child boxes in a buffer, exposing each payload as a
+     * slice of the parent.
+     */
+    private static class BoxIterator {
+        private final ByteBuffer mBuffer;
+        int type;
+        ByteBuffer payload;
+
+        BoxIterator(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        boolean next() {
+            if (mBuffer.remaining() < 8) {
+                return false;
+            }
+            int start = mBuffer.position();
+            long size = mBuffer.getInt() & 0xffffffffL;
+            type = mBuffer.getInt();
+            if (size == 1) {
+                if (mBuffer.remaining() < 8) {
+                    return false;
+                }
+                size = mBuffer.getLong();
+            } else if (size == 0) {
+                size = mBuffer.limit() - start;
+            }
+            int headerSize = mBuffer.position() - start;
+            if (size < headerSize || start + size > mBuffer.limit()) {
+                return false;
+            }
+            ByteBuffer box = mBuffer.duplicate();
+            box.limit((int) (start + size));
+            payload = box.slice();
+            mBuffer.position((int) (start + size));
+            return true;
+        }
+    }
+
+    private static int readFully(Source source, long position, ByteBuffer dst) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = source.read(position + total, dst);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static void skip(ByteBuffer buffer, int count) {
+        buffer.position(buffer.position() + count);
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    /**
+     * A local file, or a slice of one as handed out for assets and resources.
+     */
+    static class FileSource implements Source {
+        private final FileInputStream mStream;
+        private final AssetFileDescriptor mAfd;
+        private final FileChannel mChannel;
+        private final long mOffset;
+        private final long mLength;
+
+        FileSource(File file) throws IOException {
+            mStream = new FileInputStream(file);
+            mAfd = null;
+            mChannel = mStream.getChannel();
+            mOffset = 0;
+            mLength = mChannel.size();
+        }
+
+        FileSource(AssetFileDescriptor afd) throws IOException {
+            mStream = afd.createInputStream();
+            mAfd = afd;
+            mChannel = mStream.getChannel();
+            mOffset = afd.getStartOffset();
+            mLength = afd.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH
+                    ? afd.getLength() : mChannel.size() - mOffset;
+        }
+
+        public long length() {
+            return mLength;
+        }
+
+        public int read(long position, ByteBuffer dst) throws IOException {
+            if (position >= mLength) {
+                return -1;
+            }
+            long available = mLength - position;
+            if (dst.remaining() > available) {
+                ByteBuffer limited = dst.duplicate();
+                limited.limit(dst.position() + (int) available);
+                int n = mChannel.read(limited, mOffset + position);
+                if (n > 0) {
+                    dst.position(dst.position() + n);
+                }
+                return n;
+            }
+            return mChannel.read(dst, mOffset + position);
+        }
+
+        public void close() {
+            VideoCache.closeQuietly(mStream);
+            if (mAfd != null) {
+                try {
+                    mAfd.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a remote file with range requests. Small reads are served from a
+     * window fetched ahead, since box headers tend to be close together.
+     */
+    static class HttpSource implements Source {
+        private static final int WINDOW_SIZE = 64 * 1024;
+
+        private final String mUrl;
+        private long mLength = -1;
+        private byte[] mWindow;
+        private int mWindowLength;
+        private long mWindowStart = -1;
+
+        HttpSource(String url) {
+            mUrl = url;
+        }
+
+        public long length() throws IOException {
+            if (mLength < 0 && mWindowStart < 0) {
+                fillWindow(0);
+            }
+            return mLength;
+        }
+
+        public int read(long position, ByteBuffer dst) throws IOException {
+            if (mLength >= 0 && position >= mLength) {
+                return -1;
+            }
+            if (dst.remaining() > WINDOW_SIZE) {
+                return fetch(position, dst.remaining(), dst.array(),
+                        dst.arrayOffset() + dst.position(), dst);
+            }
+            if (mWindowStart < 0 || position < mWindowStart
+                    || position >= mWindowStart + mWindowLength) {
+                fillWindow(position);
+                if (mWindowLength == 0) {
+                    return -1;
+                }
+            }
+            int offset = (int) (position - mWindowStart);
+            int n = Math.min(dst.remaining(), mWindowLength - offset);
+            dst.put(mWindow, offset, n);
+            return n;
+        }
+
+        public void close() {
+            mWindow = null;
+        }
+
+        private void fillWindow(long position) throws IOException {
+            if (mWindow == null) {
+                mWindow = new byte[WINDOW_SIZE];
+            }
+            mWindowStart = position;
+            mWindowLength = 0;
+            int n = fetch(position, WINDOW_SIZE, mWindow, 0, null);
+            mWindowLength = Math.max(n, 0);
+        }
+
+        private int fetch(long position, int count, byte[] buffer, int offset, ByteBuffer dst)
+                throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(mUrl).openConnection();
+            try {
+                conn.setRequestProperty("Range", "bytes=" + position + "-" + (position + count - 1));
+                int code = conn.getResponseCode();
+                long skip = 0;
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    long total = VideoCache.getRangeTotal(conn);
+                    if (total >= 0) {
+                        mLength = total;
+                    }
+                } else if (code == HttpURLConnection.HTTP_OK) {
+                    mLength = VideoCache.getContentLength(conn);
+                    skip = position;
+                } else if (code == 416) {
+                    return -1;
+                } else {
+                    throw new IOException("Unexpected response " + code + " for " + mUrl);
+                }
+                InputStream in = conn.getInputStream();
+                while (skip > 0) {
+                    long n = in.skip(skip);
+                    if (n <= 0) {
+                        return -1;
+                    }
+                    skip -= n;
+                }
+                int total = 0;
+                while (total < count) {
+                    int n = in.read(buffer, offset + total, count - total);
+                    if (n < 0) {
+                        break;
+                    }
+                    total += n;
+                }
+                if (dst != null) {
+                    dst.position(dst.position() + total);
+                }
+                return total == 0 ? -1 : total;
+            } finally {
+                conn.disconnect();
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.test.videoplay;
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.ActivityInfo;
+import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.media.AudioManager;
 import android.os.Handler;
@@ -14,8 +15,10 @@ import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.MeasureSpec;
+import android.view.ViewTreeObserver;
 import android.widget.FrameLayout;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.PopupWindow;
 import android.widget.ProgressBar;
 import android.widget.SeekBar;
@@ -56,6 +59,8 @@ public class MyMediaController extends FrameLayout {
 	private MediaPlayerControl mPlayer;
 	private Context mContext;
 	private PopupWindow mWindow;
+	private int mWindowX;
+	private int mWindowY;
 	private int mAnimStyle;
 	private View mAnchor;
 	private View mRoot;
@@ -87,6 +92,11 @@ public class MyMediaController extends FrameLayout {
 
 	private AudioManager mAM;
 
+	private ThumbnailLoader mThumbnails;
+	private PopupWindow mThumbWindow;
+	private ImageView mThumbView;
+	private long mDragPosition;
+
 	public MyMediaController(Context context, AttributeSet attrs) {
 		super(context, attrs);
 		mRoot = this;
@@ -138,7 +148,13 @@ public class MyMediaController extends FrameLayout {
 	 * @param view The view to which to anchor the controller when it is visible.
 	 */
 	public void setAnchorView(View view) {
+		if (mAnchor != null) {
+			mAnchor.getViewTreeObserver().removeGlobalOnLayoutListener(mLayoutListener);
+		}
 		mAnchor = view;
+		if (mAnchor != null) {
+			mAnchor.getViewTreeObserver().addOnGlobalLayoutListener(mLayoutListener);
+		}
 		if (!mFromXml) {
 			removeAllViews();
 			mRoot = makeControllerView();
@@ -226,6 +242,8 @@ public class MyMediaController extends FrameLayout {
 //		mFileName = (TextView) v.findViewById(R.id.mediacontroller_file_name);
 //		if (mFileName != null)
 //			mFileName.setText(mTitle);
+
+		installPrevNextListeners();
 	}
 	
 	public void setPrevNextListeners(View.OnClickListener next, View.OnClickListener prev) {
@@ -257,6 +275,19 @@ public class MyMediaController extends FrameLayout {
         }
     }
 
+	/**
+	 * Show preview frames from loader above the SeekBar while it is dragged.
+	 * 
+	 * @param loader The loader for the current video, or null for none
+	 */
+	public void setThumbnailLoader(ThumbnailLoader loader) {
+		if (mThumbnails != null && mThumbnails != loader)
+			mThumbnails.setOnThumbnailListener(null);
+		mThumbnails = loader;
+		if (mThumbnails != null)
+			mThumbnails.setOnThumbnailListener(mThumbnailListener);
+	}
+
 	public void setMediaPlayer(MediaPlayerControl player) {
 		mPlayer = player;
 		updatePausePlay();
@@ -351,6 +382,8 @@ public class MyMediaController extends FrameLayout {
 				
 				mWindow.setAnimationStyle(mAnimStyle);
 				mWindow.showAtLocation(mAnchor, Gravity.NO_GRAVITY, anchorRect.left, anchorRect.bottom);
+				mWindowX = anchorRect.left;
+				mWindowY = anchorRect.bottom;
 			}
 			mShowing = true;
 			if (mShownListener != null)
@@ -369,11 +402,34 @@ public class MyMediaController extends FrameLayout {
 		return mShowing;
 	}
 
+	/*
+	 * Follow the anchor when it moves or resizes, e.g. on rotation to
+	 * fullscreen. Moving the popup in place avoids the flash of dismissing
+	 * and showing it again.
+	 */
+	private ViewTreeObserver.OnGlobalLayoutListener mLayoutListener = new ViewTreeObserver.OnGlobalLayoutListener() {
+		public void onGlobalLayout() {
+			if (!mShowing || mFromXml || mAnchor.getWindowToken() == null)
+				return;
+			int[] location = new int[2];
+			mRoot.measure(MeasureSpec.makeMeasureSpec(mAnchor.getWidth(), MeasureSpec.AT_MOST),
+					MeasureSpec.makeMeasureSpec(mAnchor.getHeight(), MeasureSpec.AT_MOST));
+			mAnchor.getLocationOnScreen(location);
+			int y = location[1] + mAnchor.getHeight() - mRoot.getMeasuredHeight();
+			if (location[0] != mWindowX || y != mWindowY) {
+				mWindowX = location[0];
+				mWindowY = y;
+				mWindow.update(mWindowX, mWindowY, -1, -1);
+			}
+		}
+	};
+
 	public void hide() {
 		if (mAnchor == null)
 			return;
 
 		if (mShowing) {
+			hideThumbnail();
 			try {
 				mHandler.removeMessages(SHOW_PROGRESS);
 				if (mFromXml)
@@ -501,7 +557,7 @@ public class MyMediaController extends FrameLayout {
         public void onClick(View v) {
             int pos = mPlayer.getCurrentPosition();
             pos -= 15000; // milliseconds
-            mPlayer.seekTo(pos);
+            mPlayer.seekToKeyframe(Math.max(pos, 0));
             setProgress();
 
             show(sDefaultTimeout);
@@ -512,7 +568,7 @@ public class MyMediaController extends FrameLayout {
         public void onClick(View v) {
             int pos = mPlayer.getCurrentPosition();
             pos += 15000; // milliseconds
-            mPlayer.seekTo(pos);
+            mPlayer.seekToKeyframe(pos);
             setProgress();
 
             show(sDefaultTimeout);
@@ -529,7 +585,8 @@ public class MyMediaController extends FrameLayout {
 			
 			Activity activity = ((Activity) mContext);
 			if (activity.getRequestedOrientation() == ActivityInfo.SCREEN_ORIENTATION_PORTRAIT) {
-				hide();
+				// stay up, mLayoutListener moves us along with the video
+				show(sDefaultTimeout);
 				activity.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
 				mFullScreen = true;
 				updateExpandShrink();
@@ -547,7 +604,7 @@ public class MyMediaController extends FrameLayout {
 			
 			Activity activity = ((Activity) mContext);
 			if (activity.getRequestedOrientation() == ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE) {
-				hide();
+				show(sDefaultTimeout);
 				activity.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
 				mFullScreen = false;
 				updateExpandShrink();
@@ -611,6 +668,8 @@ public class MyMediaController extends FrameLayout {
 				mInfoView.setText("");
 				mInfoView.setVisibility(View.VISIBLE);
 			}
+			mDragPosition = (mDuration * bar.getProgress()) / 1000;
+			updateThumbnail();
 		}
 
 		public void onProgressChanged(SeekBar bar, int progress, boolean fromuser) {
@@ -619,8 +678,11 @@ public class MyMediaController extends FrameLayout {
 
 			long newposition = (mDuration * progress) / 1000;
 //			String time = StringUtils.generateTime(newposition);
-//			if (mInstantSeeking)
-//				mPlayer.seekTo(newposition);
+			// the player coalesces these, so only the latest position is decoded
+			if (mInstantSeeking)
+				mPlayer.seekTo(newposition, MediaPlayerControl.SEEK_FAST);
+			mDragPosition = newposition;
+			updateThumbnail();
 //			if (mInfoView != null)
 //				mInfoView.setText(time);
 //			if (mCurrentTime != null)
@@ -629,11 +691,12 @@ public class MyMediaController extends FrameLayout {
 
 		public void onStopTrackingTouch(SeekBar bar) {
 			if (!mInstantSeeking)
-				mPlayer.seekTo((mDuration * bar.getProgress()) / 1000);
+				mPlayer.seekToKeyframe((int) ((mDuration * bar.getProgress()) / 1000));
 			if (mInfoView != null) {
 				mInfoView.setText("");
 				mInfoView.setVisibility(View.GONE);
 			}
+			hideThumbnail();
 			show(sDefaultTimeout);
 			mHandler.removeMessages(SHOW_PROGRESS);
 			mAM.setStreamMute(AudioManager.STREAM_MUSIC, false);
@@ -642,6 +705,51 @@ public class MyMediaController extends FrameLayout {
 		}
 	};
 
+	private ThumbnailLoader.OnThumbnailListener mThumbnailListener = new ThumbnailLoader.OnThumbnailListener() {
+		public void onThumbnailReady(int positionMs) {
+			if (mDragging)
+				updateThumbnail();
+		}
+	};
+
+	/**
+	 * Show the preview frame for the drag position above the SeekBar thumb.
+	 * Until it has been extracted the previous frame stays up.
+	 */
+	private void updateThumbnail() {
+		if (mThumbnails == null || mProgress == null || !mDragging)
+			return;
+		Bitmap bitmap = mThumbnails.getThumbnail((int) mDragPosition);
+		if (bitmap == null || mProgress.getWindowToken() == null)
+			return;
+
+		if (mThumbWindow == null) {
+			mThumbView = new ImageView(mContext);
+			mThumbWindow = new PopupWindow(mThumbView, LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+			mThumbWindow.setFocusable(false);
+			mThumbWindow.setTouchable(false);
+			mThumbWindow.setBackgroundDrawable(null);
+		}
+		mThumbView.setImageBitmap(bitmap);
+
+		int[] location = new int[2];
+		mProgress.getLocationOnScreen(location);
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int thumbX = location[0] + mProgress.getWidth() * mProgress.getProgress() / mProgress.getMax();
+		int x = Math.max(0, thumbX - width / 2);
+		int y = location[1] - height;
+		if (mThumbWindow.isShowing())
+			mThumbWindow.update(x, y, width, height);
+		else
+			mThumbWindow.showAtLocation(mProgress, Gravity.NO_GRAVITY, x, y);
+	}
+
+	private void hideThumbnail() {
+		if (mThumbWindow != null && mThumbWindow.isShowing())
+			mThumbWindow.dismiss();
+	}
+
 	@Override
 	public void setEnabled(boolean enabled) {
 		if (mPauseButton != null)
@@ -653,12 +761,19 @@ public class MyMediaController extends FrameLayout {
 	}
 
 	public interface MediaPlayerControl {
+		// seek modes for seekTo(long, int)
+		int     SEEK_FAST = 0;     // nearest keyframe, for scrubbing
+		int     SEEK_ACCURATE = 1; // exact frame, for resume and bookmarks
+
 		void    start();
         void    pause();
         int     getDuration();
         int     getCurrentPosition();
         void    seekTo(int pos);
         void    seekTo(long pos);
+        void    seekTo(long pos, int mode);
+        // seek to the keyframe nearest to pos, cheaper than an arbitrary position
+        void    seekToKeyframe(int pos);
         boolean isPlaying();
         int     getBufferPercentage();
         boolean canPause();
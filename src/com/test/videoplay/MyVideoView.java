@@ -17,6 +17,8 @@
 package com.test.videoplay;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import android.app.AlertDialog;
@@ -24,22 +26,18 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Resources;
-import android.media.AudioManager;
 import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnCompletionListener;
-import android.media.MediaPlayer.OnErrorListener;
-import android.media.MediaPlayer.OnInfoListener;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
-import android.view.SurfaceHolder;
-import android.view.SurfaceView;
 import android.view.View;
-import android.view.ViewGroup;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
+import android.widget.FrameLayout;
 
 /**
  * Displays a video file.  The VideoView class
@@ -48,7 +46,7 @@ import android.view.accessibility.AccessibilityNodeInfo;
  * it can be used in any layout manager, and provides various display options
  * such as scaling and tinting.
  */
-public class MyVideoView extends SurfaceView implements MyMediaController.MediaPlayerControl {
+public class MyVideoView extends FrameLayout implements MyMediaController.MediaPlayerControl {
     private String TAG = "VideoView";
     
     private Context mContext;
@@ -57,6 +55,9 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
     private Map<String, String> mHeaders;
     private int         mDuration;
 
+    // seek with whatever mode MediaPlayer.seekTo(int) uses on this platform
+    private static final int SEEK_DEFAULT = -1;
+
     // all possible internal states
     private static final int STATE_ERROR              = -1;
     private static final int STATE_IDLE               = 0;
@@ -75,22 +76,82 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
     private int mTargetState  = STATE_IDLE;
 
     // All the stuff we need for playing and showing a video
-    private SurfaceHolder mSurfaceHolder = null;
-    private MediaPlayer mMediaPlayer = null;
+    // the child we draw into, see setRenderTarget()
+    private RenderTarget mRenderTarget;
+    // owns the player on its own thread, see openVideo()
+    private PlaybackEngine mEngine;
+    // the type mEngine was asked for, see setEngineSelector()
+    private int         mEngineType = PlaybackEngine.TYPE_MEDIA_PLAYER;
+    private PlaybackEngine.Selector mEngineSelector;
     private int         mVideoWidth;
     private int         mVideoHeight;
     private int         mSurfaceWidth;
     private int         mSurfaceHeight;
+    // set by setVideoScale(), overrides the layout params when > 0
+    private int         mScaleWidth;
+    private int         mScaleHeight;
     private MyMediaController mMediaController;
     private OnCompletionListener mOnCompletionListener;
-    private MediaPlayer.OnPreparedListener mOnPreparedListener;
-    private int         mCurrentBufferPercentage;
+    private OnPreparedListener mOnPreparedListener;
     private OnErrorListener mOnErrorListener;
     private OnInfoListener  mOnInfoListener;
     private int         mSeekWhenPrepared;  // recording the seek position while preparing
+    private int         mSeekModeWhenPrepared;
     private boolean     mCanPause;
     private boolean     mCanSeekBack;
     private boolean     mCanSeekForward;
+    private VideoCacheProxy mCacheProxy;
+    // fetches http videos over several connections, see setRangeDownloader()
+    private RangeDownloader mRangeDownloader;
+    private RangeDownloader.Task mDownloadTask;
+    // startup, stall and seek timings, see setMetrics()
+    private PlaybackMetrics mMetrics;
+    private final PlaybackMetrics.Session mMetricsSession = new PlaybackMetrics.Session();
+    // see PlaybackTrace.getTimeline()
+    private int mTracePlayback;
+    // see setFrameMonitorEnabled()
+    private FrameMonitor mFrameMonitor;
+    // how much to buffer before playing, see setBufferPolicy()
+    private BufferPolicy mBufferPolicy;
+    // start() is held back until enough is buffered
+    private boolean     mWaitingForBuffer;
+    // ... and it stalled while playing, rather than not having started
+    private boolean     mRebuffering;
+    // the uri the cache proxy currently limits fetching for
+    private Uri         mReadAheadUri;
+    private static final int BUFFER_CHECK_INTERVAL = 250;
+    // renditions of the current clip, see setRenditions()
+    private RenditionLadder mRenditions;
+    private int         mRenditionIndex;
+    // the rendition to switch to at mSwitchAtMs, or -1
+    private int         mPendingRendition = -1;
+    private int         mSwitchAtMs;
+    private static final int RENDITION_CHECK_INTERVAL = 2000;
+    // while a switch is pending, to catch the keyframe it happens at
+    private static final int RENDITION_SWITCH_INTERVAL = 100;
+    // how late a switch may still happen; any later and the picture would
+    // visibly jump back to the keyframe
+    private static final int RENDITION_SWITCH_SLACK = 40;
+    // time for the new rendition to prepare before the switch
+    private static final int RENDITION_SWITCH_LEAD = 2000;
+
+    // playlist support, see setPlaylist()
+    private List<Uri>   mPlaylist;
+    private int         mPlaylistIndex;
+    // items follow each other without a gap, see setQueue()
+    private boolean     mGapless;
+    private boolean     mPreloadPrevious;
+
+    // keep the player while there is no surface, see setRetainPlayerTimeout()
+    private int         mRetainTimeoutMs;
+    private boolean     mRetained;
+
+    // parsed from the container header before the player is prepared
+    private Mp4Parser.Info mMediaInfo;
+    private KeyframeIndex mKeyframeIndex;
+    private ProbeTask   mProbeTask;
+    private ThumbnailLoader mThumbnailLoader;
+    private Uri         mThumbnailUri;  // what mThumbnailLoader works on
 
     public MyVideoView(Context context) {
         super(context);
@@ -118,18 +179,56 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
     	return mVideoHeight;
     }
     
+    /**
+     * Resize the view, e.g. for fullscreen, without going through
+     * setLayoutParams(). Meant to be called from onConfigurationChanged():
+     * the new size is picked up by the layout pass the rotation triggers
+     * anyway, and the surface buffer keeps its size, so the decoder does
+     * not have to reconfigure its output and playback does not stall.
+     */
     public void setVideoScale(int width , int height){
-    	ViewGroup.LayoutParams lp = getLayoutParams();
-    	lp.height = height;
-		lp.width = width;
-		setLayoutParams(lp);
+    	if (width == mScaleWidth && height == mScaleHeight) {
+    		return;
+    	}
+    	mScaleWidth = width;
+    	mScaleHeight = height;
+    	if (mVideoWidth == 0 && mSurfaceWidth > 0) {
+    		// no video size yet, pin the buffer to what it is now
+    		mRenderTarget.setBufferSize(mSurfaceWidth, mSurfaceHeight);
+    	}
+    	// only marks this view, the pending traversal measures it again
+    	forceLayout();
+    	removeCallbacks(mCheckScale);
+    	post(mCheckScale);
+    }
+
+    private Runnable mCheckScale = new Runnable() {
+        public void run() {
+            if (getWidth() != mScaleWidth || getHeight() != mScaleHeight) {
+                // no traversal came along (not a rotation), ask for one
+                requestLayout();
+            }
+        }
+    };
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        PlaybackTrace.mark(PlaybackTrace.VIEW_RESIZED, w, h);
     }
 
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         //Log.i("@@@@", "onMeasure");
-        int width = getDefaultSize(mVideoWidth, widthMeasureSpec);
-        int height = getDefaultSize(mVideoHeight, heightMeasureSpec);
+        int width;
+        int height;
+        if (mScaleWidth > 0 && mScaleHeight > 0) {
+            width = mScaleWidth;
+            height = mScaleHeight;
+        } else {
+            width = getDefaultSize(mVideoWidth, widthMeasureSpec);
+            height = getDefaultSize(mVideoHeight, heightMeasureSpec);
+        }
         if (mVideoWidth > 0 && mVideoHeight > 0) {
             if ( mVideoWidth * height  > width * mVideoHeight ) {
                 //Log.i("@@@", "image too tall, correcting");
@@ -145,6 +244,9 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
         }
         //Log.i("@@@@@@@@@@", "setting size: " + width + 'x' + height);
         setMeasuredDimension(width, height);
+        // the render view always fills us
+        mRenderTarget.getView().measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
     }
 
     @Override
@@ -191,13 +293,41 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
     private void initVideoView() {
         mVideoWidth = 0;
         mVideoHeight = 0;
-        getHolder().addCallback(mSHCallback);
-        getHolder().setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
+        if (mRenderTarget == null) {
+            setRenderTarget(new SurfaceRenderTarget(mContext));
+        }
         setFocusable(true);
         setFocusableInTouchMode(true);
         requestFocus();
         mCurrentState = STATE_IDLE;
         mTargetState  = STATE_IDLE;
+        if (mEngine == null) {
+            mEngine = createEngine(mEngineType);
+        }
+    }
+
+    private PlaybackEngine createEngine(int type) {
+        PlaybackEngine engine = PlaybackEngine.create(mContext, type);
+        engine.setListener(mEngineListener);
+        if (mCacheProxy != null) {
+            engine.setCacheProxy(mCacheProxy);
+        }
+        return engine;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(mReleaseRetained);
+        mRetained = false;
+        // the engine thread would outlive the activity otherwise
+        mEngine.quit();
+        cancelDownload();
+        if (mFrameMonitor != null) {
+            mFrameMonitor.stop();
+        }
+        mCurrentState = STATE_IDLE;
+        mEngine = createEngine(mEngineType);
     }
 
     public void setVideoPath(String path) {
@@ -208,35 +338,790 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
         setVideoURI(uri, null);
     }
 
+    /**
+     * Play a file from the APK's assets directory, read in place through
+     * its file descriptor, see {@link LocalMedia}.
+     *
+     * @param path The path within assets, e.g. "clip.mp4".
+     */
+    public void setVideoAsset(String path) {
+        setVideoURI(LocalMedia.assetUri(path));
+    }
+
+    /**
+     * Play a raw resource, read in place through its file descriptor, see
+     * {@link LocalMedia}.
+     */
+    public void setVideoResource(int resId) {
+        setVideoURI(LocalMedia.resourceUri(mContext, resId));
+    }
+
     /**
      * @hide
      */
     public void setVideoURI(Uri uri, Map<String, String> headers) {
+        mRenditions = null;
+        mPendingRendition = -1;
+        // a single video ends any playlist, playItem() does not come here
+        mPlaylist = null;
+        mPlaylistIndex = 0;
+        mGapless = false;
         mUri = uri;
         mHeaders = headers;
         mSeekWhenPrepared = 0;
+        probeMediaInfo();
+        openVideo();
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Fetch every http(s) video this view opens with downloader, over
+     * several connections at once, instead of only through the player's
+     * single connection. The player starts as soon as the leading ranges are
+     * in. Needs a cache proxy on the same {@link VideoCache}, see
+     * {@link #setCacheProxy(VideoCacheProxy)}; created on that proxy, it
+     * keeps to the read-ahead limit of {@link #setBufferPolicy(BufferPolicy)}
+     * and its reads feed the download rate.
+     *
+     * @param downloader The downloader, or null to leave fetching to the
+     * player.
+     */
+    public void setRangeDownloader(RangeDownloader downloader) {
+        mRangeDownloader = downloader;
+    }
+
+    private void startDownload() {
+        if (mDownloadTask != null && mDownloadTask.getUri().equals(mUri)) {
+            return;
+        }
+        cancelDownload();
+        if (mRangeDownloader != null && mCacheProxy != null
+                && VideoCacheProxy.isProxyable(mUri)
+                && !mCacheProxy.getCache().isCached(mUri.toString())) {
+            mDownloadTask = mRangeDownloader.download(mUri, null);
+        }
+    }
+
+    /**
+     * Record how long this view takes to start, stall and seek into
+     * metrics. Several views may share one object to aggregate their
+     * playbacks.
+     *
+     * @param metrics The metrics, or null to stop recording.
+     */
+    public void setMetrics(PlaybackMetrics metrics) {
+        if (mMetrics != null) {
+            mMetrics.onStop(mMetricsSession);
+        }
+        mMetrics = metrics;
+    }
+
+    public PlaybackMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * How the current video started: the time from opening it to its first
+     * frame, phase by phase, see {@link PlaybackTrace}. The first video's
+     * timeline starts with the activity.
+     */
+    public String getStartupTimeline() {
+        return PlaybackTrace.getTimeline(mTracePlayback);
+    }
+
+    /**
+     * Watch the UI thread's frame rate while a video plays, split by whether
+     * the media controller is showing, see {@link FrameMonitor}. Needs API
+     * 16; does nothing before.
+     */
+    public void setFrameMonitorEnabled(boolean enabled) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        if (enabled && mFrameMonitor == null) {
+            mFrameMonitor = new FrameMonitor(mContext, mFrameHost);
+            if (isPlaying()) {
+                mFrameMonitor.start();
+            }
+        } else if (!enabled && mFrameMonitor != null) {
+            mFrameMonitor.stop();
+            mFrameMonitor = null;
+        }
+    }
+
+    /**
+     * @return The frame numbers since {@link #setFrameMonitorEnabled(boolean)},
+     * or null if not enabled.
+     */
+    public FrameMonitor.Snapshot getFrameStats() {
+        return mFrameMonitor != null ? mFrameMonitor.getSnapshot() : null;
+    }
+
+    private FrameMonitor.Host mFrameHost = new FrameMonitor.Host() {
+        public boolean isPlaying() {
+            return MyVideoView.this.isPlaying();
+        }
+
+        public boolean isControllerShowing() {
+            return mMediaController != null && mMediaController.isShowing();
+        }
+
+        public long getVideoFrameCount() {
+            // what reached the screen if we can see it, else what was decoded
+            if (mRenderTarget instanceof TextureRenderTarget) {
+                return ((TextureRenderTarget) mRenderTarget).getFrameCount();
+            }
+            if (mEngine instanceof MediaCodecEngine) {
+                return ((MediaCodecEngine) mEngine).getRenderedFrames();
+            }
+            return -1;
+        }
+    };
+
+    /**
+     * Control how much of an http(s) video is buffered: playback starts, and
+     * resumes after a stall, only once the policy's amount is in, and the
+     * cache proxy stops fetching the policy's maximum ahead of the playback
+     * position. The amount buffered is known for proxied streams, and from
+     * the buffering updates of the MediaPlayer engine otherwise; the
+     * read-ahead limit and the adaptation to the download rate need the
+     * proxy, see {@link #setCacheProxy(VideoCacheProxy)}.
+     *
+     * @param policy The policy, or null to leave buffering to the player.
+     */
+    public void setBufferPolicy(BufferPolicy policy) {
+        mBufferPolicy = policy;
+        if (policy == null) {
+            removeCallbacks(mBufferCheck);
+            clearReadAhead();
+            if (mWaitingForBuffer) {
+                mWaitingForBuffer = false;
+                if (mRebuffering) {
+                    mRebuffering = false;
+                    mEngine.start();
+                } else if (mTargetState == STATE_PLAYING) {
+                    start();
+                }
+            }
+        } else {
+            scheduleBufferCheck();
+        }
+    }
+
+    public BufferPolicy getBufferPolicy() {
+        return mBufferPolicy;
+    }
+
+    private void scheduleBufferCheck() {
+        if (mBufferPolicy != null) {
+            removeCallbacks(mBufferCheck);
+            post(mBufferCheck);
+        }
+    }
+
+    private Runnable mBufferCheck = new Runnable() {
+        public void run() {
+            if (mBufferPolicy == null || !isInPlaybackState()) {
+                return;
+            }
+            updateReadAhead(getCurrentPosition());
+            if (mWaitingForBuffer && mTargetState == STATE_PLAYING && isBuffered(mRebuffering)) {
+                mWaitingForBuffer = false;
+                if (!mRebuffering) {
+                    // schedules the next check itself
+                    start();
+                    return;
+                }
+                mRebuffering = false;
+                if (mCurrentState == STATE_PLAYING) {
+                    mEngine.start();
+                    if (mMetrics != null) {
+                        // the player may not report the end of a stall we ended
+                        mMetrics.onBufferingEnd(mMetricsSession);
+                    }
+                }
+            }
+            if (mWaitingForBuffer || mCurrentState == STATE_PLAYING) {
+                postDelayed(this, BUFFER_CHECK_INTERVAL);
+            }
+        }
+    };
+
+    /*
+     * Whether enough is buffered ahead to start, or resume after a stall.
+     * Where the amount buffered cannot be told, the player decides.
+     */
+    private boolean isBuffered(boolean rebuffering) {
+        long ahead = getBufferedAheadMs();
+        if (ahead < 0) {
+            return true;
+        }
+        int position = getCurrentPosition();
+        long bandwidth = getBandwidthEstimate();
+        long length = getProxiedLength();
+        long mediaBitrate = length > 0 ? length * 8000 / getDuration() : -1;
+        return ahead >= mBufferPolicy.getRequiredBufferMs(rebuffering, bandwidth, mediaBitrate,
+                getDuration() - position);
+    }
+
+    /*
+     * Media buffered ahead of the playback position, or -1 if unknown. The
+     * cache is mapped to time by the average bitrate.
+     */
+    private long getBufferedAheadMs() {
+        int duration = getDuration();
+        if (duration <= 0) {
+            return -1;
+        }
+        int position = getCurrentPosition();
+        long length = getProxiedLength();
+        if (length > 0) {
+            long cached = mCacheProxy.getCache().getCachedLength(mUri.toString(),
+                    length * position / duration);
+            return cached * duration / length;
+        }
+        String scheme = mUri.getScheme();
+        if (mEngineType == PlaybackEngine.TYPE_MEDIA_PLAYER
+                && ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))) {
+            return Math.max(0, (long) getBufferPercentage() * duration / 100 - position);
+        }
+        return -1;
+    }
+
+    /*
+     * The length of the current video if it streams through the cache
+     * proxy and the length is known, -1 otherwise.
+     */
+    private long getProxiedLength() {
+        if (mCacheProxy == null || !mCacheProxy.isRunning() || !VideoCacheProxy.isProxyable(mUri)) {
+            return -1;
+        }
+        return mCacheProxy.getCache().getLength(mUri.toString());
+    }
+
+    /*
+     * The download rate measured by the cache proxy, -1 if unknown.
+     */
+    private long getBandwidthEstimate() {
+        return mCacheProxy != null ? mCacheProxy.getBandwidthMeter().getBitrateEstimate() : -1;
+    }
+
+    /**
+     * Play one clip available in several renditions. The first is picked by
+     * the download rate measured so far, the lowest if there is none yet.
+     * While playing, the rate is watched and a better suited rendition is
+     * prepared on a standby player in the background, positioned at a
+     * keyframe ahead, and swapped in when playback gets there; a seek
+     * meanwhile moves the standby along. If it is not ready in time the
+     * switch moves on to a later keyframe. Engines without standby players,
+     * see {@link PlaybackEngine#canSwitch()}, reopen the video in the new
+     * rendition instead, which shows as a short rebuffer. The rate is
+     * measured by the cache proxy, see {@link #setCacheProxy(VideoCacheProxy)};
+     * without one the first rendition plays throughout.
+     */
+    public void setRenditions(RenditionLadder renditions) {
+        int index = renditions.selectInitial(getBandwidthEstimate());
+        setVideoURI(renditions.get(index).uri);
+        mRenditions = renditions;
+        mRenditionIndex = index;
+    }
+
+    /**
+     * @return The index of the rendition playing, see
+     * {@link #setRenditions(RenditionLadder)}.
+     */
+    public int getRenditionIndex() {
+        return mRenditionIndex;
+    }
+
+    private void scheduleRenditionCheck() {
+        if (mRenditions != null) {
+            removeCallbacks(mRenditionCheck);
+            int delay = RENDITION_CHECK_INTERVAL;
+            if (mPendingRendition >= 0) {
+                // wake up right at the keyframe rather than somewhere past it
+                int left = mSwitchAtMs - getCurrentPosition();
+                delay = Math.max(0, Math.min(RENDITION_SWITCH_INTERVAL, left));
+            }
+            postDelayed(mRenditionCheck, delay);
+        }
+    }
+
+    private Runnable mRenditionCheck = new Runnable() {
+        public void run() {
+            if (mRenditions == null || !isPlaying()) {
+                // start() checks again
+                return;
+            }
+            int position = getCurrentPosition();
+            if (mPendingRendition < 0) {
+                int index = mRenditions.select(mRenditionIndex, getBandwidthEstimate());
+                if (index != mRenditionIndex) {
+                    prepareRendition(index, position);
+                }
+            } else if (position >= mSwitchAtMs) {
+                if (!mEngine.canSwitch()) {
+                    switchRendition(position, SEEK_ACCURATE);
+                    return;
+                }
+                if (position - mSwitchAtMs > RENDITION_SWITCH_SLACK) {
+                    // missed it, e.g. the main thread was busy
+                    prepareRendition(mPendingRendition, position);
+                } else if (mEngine.switchNow()) {
+                    onRenditionSwitched();
+                } else {
+                    // not ready in time, try again further on
+                    prepareRendition(mPendingRendition, position);
+                }
+            }
+            scheduleRenditionCheck();
+        }
+    };
+
+    /*
+     * Pick the keyframe to switch at and get the rendition ready there on
+     * a standby player; renditions of a clip are expected to share
+     * keyframes. Engines without standby players open it at the switch
+     * instead.
+     */
+    private void prepareRendition(int index, int position) {
+        mPendingRendition = index;
+        int at = mKeyframeIndex != null ? mKeyframeIndex.ceiling(position + RENDITION_SWITCH_LEAD) : -1;
+        mSwitchAtMs = at >= 0 ? at : position + RENDITION_SWITCH_LEAD;
+        prepareSwitch();
+    }
+
+    private void prepareSwitch() {
+        Uri uri = mRenditions.get(mPendingRendition).uri;
+        mEngine.prepareSwitch(uri, getPlayerUri(uri), mHeaders, mSwitchAtMs);
+    }
+
+    /*
+     * The engine swapped in the standby player of the pending rendition.
+     */
+    private void onRenditionSwitched() {
+        mRenditionIndex = mPendingRendition;
+        mPendingRendition = -1;
+        mUri = mRenditions.get(mRenditionIndex).uri;
+        // asked again of the new player
+        mDuration = -1;
+        // keyframes and seek previews of the new encoding
+        probeMediaInfo();
+        if (mBufferPolicy != null) {
+            // fetching limits apply to the new uri now
+            updateReadAhead(mSwitchAtMs);
+        }
+    }
+
+    /*
+     * Reopen the video at pos in the pending rendition, for engines without
+     * standby players. The target state is kept, so a playing video resumes
+     * as soon as the new player is ready.
+     */
+    private void switchRendition(long pos, int mode) {
+        mRenditionIndex = mPendingRendition;
+        mPendingRendition = -1;
+        mUri = mRenditions.get(mRenditionIndex).uri;
+        mSeekWhenPrepared = (int) pos;
+        mSeekModeWhenPrepared = mode;
+        probeMediaInfo();
+        openVideo();
+    }
+
+    private void resetBuffering() {
+        removeCallbacks(mBufferCheck);
+        mWaitingForBuffer = false;
+        mRebuffering = false;
+        clearReadAhead();
+    }
+
+    private void updateReadAhead(long positionMs) {
+        long length = getProxiedLength();
+        int duration = getDuration();
+        if (length <= 0 || duration <= 0) {
+            return;
+        }
+        if (mReadAheadUri != null && !mReadAheadUri.equals(mUri)) {
+            clearReadAhead();
+        }
+        long aheadMs = Math.min(duration, positionMs + mBufferPolicy.getMaxReadAheadMs());
+        mCacheProxy.setReadAheadLimit(mUri, length * aheadMs / duration);
+        mReadAheadUri = mUri;
+    }
+
+    private void clearReadAhead() {
+        if (mReadAheadUri != null) {
+            mCacheProxy.setReadAheadLimit(mReadAheadUri, -1);
+            mReadAheadUri = null;
+        }
+    }
+
+    private void cancelDownload() {
+        if (mDownloadTask != null) {
+            mDownloadTask.cancel();
+            mDownloadTask = null;
+        }
+    }
+
+    /**
+     * Forward ComponentCallbacks2.onTrimMemory() here, so decoders and
+     * players kept only for quick reuse are released under memory pressure.
+     */
+    public void onTrimMemory(int level) {
+        mEngine.trimMemory(level);
+    }
+
+    /**
+     * Route http(s) playback through a local caching proxy, so bytes that
+     * were already downloaded are served from disk. Takes effect the next
+     * time a video is opened.
+     *
+     * @param proxy A started proxy, or null to talk to the network directly.
+     */
+    public void setCacheProxy(VideoCacheProxy proxy) {
+        mCacheProxy = proxy;
+        mEngine.setCacheProxy(proxy);
+    }
+
+    /**
+     * Pick the engine for each video as it is opened, e.g.
+     * {@link PlaybackEngine#TYPE_MEDIA_CODEC} for local files and
+     * MediaPlayer for streams it handles better. Without a selector every
+     * video plays with MediaPlayer.
+     */
+    public void setEngineSelector(PlaybackEngine.Selector selector) {
+        mEngineSelector = selector;
+    }
+
+    /**
+     * Draw into a TextureView instead of a SurfaceView, so the video can be
+     * transformed and animated like any other view and rendered frames can
+     * be counted, see {@link TextureRenderTarget}. TextureView composites
+     * every frame through the GPU, so this costs some power; below API 14
+     * the SurfaceView is kept.
+     */
+    public void setUseTextureView(boolean use) {
+        if (use == mRenderTarget instanceof TextureRenderTarget) {
+            return;
+        }
+        if (use && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            setRenderTarget(new TextureRenderTarget(mContext));
+        } else {
+            setRenderTarget(new SurfaceRenderTarget(mContext));
+        }
+    }
+
+    /**
+     * Replace the view the video is drawn into. Playback continues on the
+     * new target once its surface exists.
+     */
+    public void setRenderTarget(RenderTarget target) {
+        if (mRenderTarget != null) {
+            mRenderTarget.setCallback(null);
+            if (mEngine != null && mEngine.isOpen()) {
+                mRenderTarget.detach(mEngine);
+            }
+            removeView(mRenderTarget.getView());
+        }
+        mRenderTarget = target;
+        if (mVideoWidth != 0 && mVideoHeight != 0) {
+            target.setBufferSize(mVideoWidth, mVideoHeight);
+        }
+        target.setCallback(mRenderCallback);
+        addView(target.getView(), new LayoutParams(LayoutParams.MATCH_PARENT,
+                LayoutParams.MATCH_PARENT));
+    }
+
+    public RenderTarget getRenderTarget() {
+        return mRenderTarget;
+    }
+
+    /**
+     * Keep the prepared player, its buffers and its position when the
+     * surface goes away (app in the background, screen locked) or on
+     * {@link #suspend()}. The player is paused and detached from the display,
+     * and re-attached when a new surface is created, so resuming does not
+     * have to prepare again. If no surface shows up within timeoutMs the
+     * player is released after all.
+     *
+     * @param timeoutMs How long to keep an idle player, or 0 to release it
+     * right away like VideoView does. The default is 0.
+     */
+    public void setRetainPlayerTimeout(int timeoutMs) {
+        mRetainTimeoutMs = timeoutMs;
+    }
+
+    /*
+     * Park the player without a display instead of releasing it. Called
+     * while the surface may be about to go away, so this returns only once
+     * the engine stopped drawing into it; the pause can follow in its own
+     * time.
+     */
+    private boolean retainPlayer() {
+        if (mRetainTimeoutMs <= 0 || !isInPlaybackState()) {
+            return false;
+        }
+        mRenderTarget.detach(mEngine);
+        if (mCurrentState == STATE_PLAYING) {
+            mEngine.pause();
+            mCurrentState = STATE_PAUSED;
+            setKeepScreenOn(false);
+        }
+        mRetained = true;
+        removeCallbacks(mReleaseRetained);
+        postDelayed(mReleaseRetained, mRetainTimeoutMs);
+        return true;
+    }
+
+    private Runnable mReleaseRetained = new Runnable() {
+        public void run() {
+            if (mRetained) {
+                mRetained = false;
+                release(true);
+                mEngine.clearPreload();
+            }
+        }
+    };
+
+    /**
+     * Play a list of videos, starting at index. While an item plays its
+     * successor (and its predecessor, see {@link #setPreloadPrevious(boolean)})
+     * is prepared in the background, so skipping to it only has to attach
+     * the surface. The next/prev buttons of the media controller are wired
+     * to {@link #playNext()} and {@link #playPrevious()}.
+     */
+    public void setPlaylist(List<Uri> uris, int index) {
+        mPlaylist = new ArrayList<Uri>(uris);
+        mGapless = false;
+        playItem(index);
+    }
+
+    /**
+     * Play a sequence of videos back to back, e.g. an ad pre-roll and then
+     * the content. While an item plays its successor is prepared and chained
+     * to it, so it takes over at the end without a gap; duration and
+     * position move on to it at that point and the info listener is told
+     * with MEDIA_INFO_STARTED_AS_NEXT. Where the engine cannot chain
+     * players the next item is opened on completion instead. Skipping works
+     * as for {@link #setPlaylist(List, int)}.
+     */
+    public void setQueue(List<Uri> uris) {
+        mPlaylist = new ArrayList<Uri>(uris);
+        mGapless = true;
+        playItem(0);
+    }
+
+    /**
+     * Also keep the previous playlist item prepared. This costs a second
+     * standby player, so it is off by default.
+     */
+    public void setPreloadPrevious(boolean preload) {
+        mPreloadPrevious = preload;
+    }
+
+    public boolean hasNext() {
+        return mPlaylist != null && mPlaylistIndex < mPlaylist.size() - 1;
+    }
+
+    public boolean hasPrevious() {
+        return mPlaylist != null && mPlaylistIndex > 0;
+    }
+
+    public void playNext() {
+        if (hasNext()) {
+            playItem(mPlaylistIndex + 1);
+        }
+    }
+
+    public void playPrevious() {
+        if (hasPrevious()) {
+            playItem(mPlaylistIndex - 1);
+        }
+    }
+
+    private void playItem(int index) {
+        mRenditions = null;
+        mPendingRendition = -1;
+        mPlaylistIndex = index;
+        mUri = mPlaylist.get(index);
+        mHeaders = null;
+        mSeekWhenPrepared = 0;
+        probeMediaInfo();
+        // the engine takes over the standby player for mUri, if any
         openVideo();
         requestLayout();
         invalidate();
     }
 
+    private void preloadNeighbours() {
+        if (mPlaylist == null) {
+            return;
+        }
+        List<Uri> uris = new ArrayList<Uri>(2);
+        if (hasNext() && mGapless) {
+            // prepared by the engine as the chained player instead
+            Uri next = mPlaylist.get(mPlaylistIndex + 1);
+            mEngine.setNext(next, getPlayerUri(next), null);
+        } else if (hasNext()) {
+            uris.add(mPlaylist.get(mPlaylistIndex + 1));
+        }
+        if (mPreloadPrevious && hasPrevious()) {
+            uris.add(mPlaylist.get(mPlaylistIndex - 1));
+        }
+        mEngine.preload(uris);
+    }
+
+    /**
+     * Extract seek preview frames for every video played in this view and
+     * hand them to the media controller.
+     *
+     * @param loader The loader to use, or null to turn previews off.
+     */
+    public void setThumbnailLoader(ThumbnailLoader loader) {
+        if (mThumbnailLoader != null) {
+            mThumbnailLoader.clearSource();
+        }
+        mThumbnailLoader = loader;
+        mThumbnailUri = null;
+        if (mMediaController != null) {
+            mMediaController.setThumbnailLoader(loader);
+        }
+    }
+
+    private void startThumbnails(int durationMs) {
+        if (mThumbnailLoader == null || mUri == null || durationMs <= 0
+                || mUri.equals(mThumbnailUri)) {
+            return;
+        }
+        if (mRenditions != null && mThumbnailUri != null
+                && mRenditions.indexOf(mThumbnailUri) >= 0) {
+            // another rendition of the same clip has them already
+            return;
+        }
+        mThumbnailUri = mUri;
+        Uri dataUri = getDataUri(mUri);
+        mThumbnailLoader.setSource(mUri, dataUri, durationMs);
+    }
+
+    /**
+     * @return What the container header says about the current video, or
+     * null if it has not been parsed (yet).
+     */
+    public Mp4Parser.Info getMediaInfo() {
+        return mMediaInfo;
+    }
+
+    /*
+     * Read the MP4 header in the background, so size and duration are known
+     * while MediaPlayer is still preparing.
+     */
+    private void probeMediaInfo() {
+        mMediaInfo = null;
+        mKeyframeIndex = null;
+        if (mProbeTask != null) {
+            mProbeTask.cancel(false);
+        }
+        mProbeTask = new ProbeTask(mUri);
+        mProbeTask.execute();
+    }
+
+    private void onMediaInfo(Mp4Parser.Info info) {
+        mMediaInfo = info;
+        mKeyframeIndex = KeyframeIndex.from(info);
+        // once prepared, the player's own numbers win
+        if (!isInPlaybackState() && info.videoWidth != 0 && info.videoHeight != 0) {
+            mVideoWidth = info.videoWidth;
+            mVideoHeight = info.videoHeight;
+            mRenderTarget.setBufferSize(mVideoWidth, mVideoHeight);
+            requestLayout();
+        }
+        startThumbnails(info.getDurationMs());
+        if (mMediaController != null && mCurrentState == STATE_PREPARING
+                && info.durationUs > 0) {
+            // seeks are queued in mSeekWhenPrepared until onPrepared
+            mMediaController.setEnabled(true);
+        }
+    }
+
+    private class ProbeTask extends AsyncTask<Void, Void, Mp4Parser.Info> {
+        private final Uri mProbeUri;
+        private final Uri mDataUri;
+
+        ProbeTask(Uri uri) {
+            mProbeUri = uri;
+            // go through the proxy, so the header bytes are cached for the player
+            mDataUri = getDataUri(uri);
+        }
+
+        @Override
+        protected Mp4Parser.Info doInBackground(Void... params) {
+            Mp4Parser.Source source = null;
+            try {
+                source = Mp4Parser.open(mContext, mDataUri);
+                Mp4Parser.Info info = Mp4Parser.parse(source);
+                PlaybackTrace.markFirst(PlaybackTrace.HEADER_PARSED);
+                return info;
+            } catch (IOException ex) {
+                Log.d(TAG, "Unable to parse header of " + mProbeUri + ": " + ex.getMessage());
+                return null;
+            } catch (RuntimeException ex) {
+                Log.d(TAG, "Unable to parse header of " + mProbeUri, ex);
+                return null;
+            } finally {
+                if (source != null) {
+                    source.close();
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Mp4Parser.Info info) {
+            if (info != null && mProbeUri.equals(mUri)) {
+                onMediaInfo(info);
+            }
+        }
+    }
+
     public void stopPlayback() {
-        if (mMediaPlayer != null) {
-            mMediaPlayer.stop();
-            mMediaPlayer.release();
-            mMediaPlayer = null;
+        if (mEngine.isOpen()) {
+            mEngine.reset();
             mCurrentState = STATE_IDLE;
             mTargetState  = STATE_IDLE;
+            setKeepScreenOn(false);
+        }
+        mEngine.clearPreload();
+        cancelDownload();
+        resetBuffering();
+        if (mMetrics != null) {
+            mMetrics.onStop(mMetricsSession);
+        }
+        if (mThumbnailLoader != null) {
+            mThumbnailLoader.clearSource();
+            mThumbnailUri = null;
         }
     }
 
+    private Uri getDataUri(Uri uri) {
+        return mCacheProxy != null ? mCacheProxy.getProxyUri(uri) : uri;
+    }
+
+    /*
+     * Like getDataUri(), for players: held to the read-ahead limit.
+     */
+    private Uri getPlayerUri(Uri uri) {
+        return mCacheProxy != null ? mCacheProxy.getPlayerUri(uri) : uri;
+    }
+
     private void openVideo() {
-        if (mUri == null || mSurfaceHolder == null) {
+        if (mUri == null) {
             // not ready for playback just yet, will try again later
             return;
         }
         // Tell the music playback service to pause
         // TODO: these constants need to be published somewhere in the framework.
+        PlaybackTrace.beginSection("MyVideoView.openVideo");
+        mTracePlayback = PlaybackTrace.beginPlayback();
         Intent i = new Intent("com.android.music.musicservicecommand");
         i.putExtra("command", "pause");
         mContext.sendBroadcast(i);
@@ -244,38 +1129,30 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
         // we shouldn't clear the target state, because somebody might have
         // called start() previously
         release(false);
-        try {
-            mMediaPlayer = new MediaPlayer();
-            mMediaPlayer.setOnPreparedListener(mPreparedListener);
-            mMediaPlayer.setOnVideoSizeChangedListener(mSizeChangedListener);
-            mDuration = -1;
-            mMediaPlayer.setOnCompletionListener(mCompletionListener);
-            mMediaPlayer.setOnErrorListener(mErrorListener);
-            mMediaPlayer.setOnInfoListener(mOnInfoListener);
-            mMediaPlayer.setOnBufferingUpdateListener(mBufferingUpdateListener);
-            mCurrentBufferPercentage = 0;
-            mMediaPlayer.setDataSource(mContext, mUri, mHeaders);
-            mMediaPlayer.setDisplay(mSurfaceHolder);
-            mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            mMediaPlayer.setScreenOnWhilePlaying(true);
-            mMediaPlayer.prepareAsync();
-            // we don't set the target state here either, but preserve the
-            // target state that was there before.
-            mCurrentState = STATE_PREPARING;
-            attachMediaController();
-        } catch (IOException ex) {
-            Log.w(TAG, "Unable to open content: " + mUri, ex);
-            mCurrentState = STATE_ERROR;
-            mTargetState = STATE_ERROR;
-            mErrorListener.onError(mMediaPlayer, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
-            return;
-        } catch (IllegalArgumentException ex) {
-            Log.w(TAG, "Unable to open content: " + mUri, ex);
-            mCurrentState = STATE_ERROR;
-            mTargetState = STATE_ERROR;
-            mErrorListener.onError(mMediaPlayer, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
-            return;
+        int type = mEngineSelector != null ? mEngineSelector.select(mUri)
+                : PlaybackEngine.TYPE_MEDIA_PLAYER;
+        if (type != mEngineType) {
+            // preloaded players belong to the old engine and go with it
+            mEngine.quit();
+            mEngineType = type;
+            mEngine = createEngine(type);
         }
+        mDuration = -1;
+        startDownload();
+        if (mMetrics != null) {
+            mMetrics.onOpen(mMetricsSession);
+        }
+        Uri dataUri = getPlayerUri(mUri);
+        // setDataSource() and prepareAsync() happen on the engine thread.
+        // Without a surface yet, the player prepares headless and the
+        // display is attached in onSurfaceCreated().
+        mEngine.open(mUri, dataUri, mHeaders);
+        mRenderTarget.attach(mEngine);
+        // we don't set the target state here either, but preserve the
+        // target state that was there before.
+        mCurrentState = STATE_PREPARING;
+        attachMediaController();
+        PlaybackTrace.endSection();
     }
 
     public void setMediaController(MyMediaController controller) {
@@ -287,32 +1164,55 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
     }
 
     private void attachMediaController() {
-        if (mMediaPlayer != null && mMediaController != null) {
+        if (mEngine.isOpen() && mMediaController != null) {
             mMediaController.setMediaPlayer(this);
+            mMediaController.setThumbnailLoader(mThumbnailLoader);
             // TODO  ޸anchorview
 //            View anchorView = this.getParent() instanceof View ?
 //                    (View)this.getParent() : this;
             View anchorView = this;
             mMediaController.setAnchorView(anchorView);
             mMediaController.setEnabled(isInPlaybackState());
+            if (mPlaylist != null) {
+                mMediaController.setPrevNextListeners(hasNext() ? mNextListener : null,
+                        hasPrevious() ? mPrevListener : null);
+            }
         }
     }
 
-    MediaPlayer.OnVideoSizeChangedListener mSizeChangedListener =
-        new MediaPlayer.OnVideoSizeChangedListener() {
-            public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
-                mVideoWidth = mp.getVideoWidth();
-                mVideoHeight = mp.getVideoHeight();
-                if (mVideoWidth != 0 && mVideoHeight != 0) {
-                    getHolder().setFixedSize(mVideoWidth, mVideoHeight);
-                    requestLayout();
-                }
-            }
+    private View.OnClickListener mNextListener = new View.OnClickListener() {
+        public void onClick(View v) {
+            playNext();
+        }
+    };
+
+    private View.OnClickListener mPrevListener = new View.OnClickListener() {
+        public void onClick(View v) {
+            playPrevious();
+        }
     };
 
-    MediaPlayer.OnPreparedListener mPreparedListener = new MediaPlayer.OnPreparedListener() {
-        public void onPrepared(MediaPlayer mp) {
+    private PlaybackEngine.Listener mEngineListener = new PlaybackEngine.Listener() {
+        public void onVideoSizeChanged(int width, int height) {
+            PlaybackTrace.mark(PlaybackTrace.VIDEO_SIZE, width, height);
+            mVideoWidth = width;
+            mVideoHeight = height;
+            if (mVideoWidth != 0 && mVideoHeight != 0) {
+                mRenderTarget.setBufferSize(mVideoWidth, mVideoHeight);
+                requestLayout();
+            }
+        }
+
+        public void onPrepared() {
+            PlaybackEngine.Snapshot snapshot = mEngine.getSnapshot();
             mCurrentState = STATE_PREPARED;
+            PlaybackTrace.mark(PlaybackTrace.PREPARED);
+            PlaybackTrace.beginSection("MyVideoView.onPrepared");
+            if (mMetrics != null) {
+                mMetrics.onPrepared(mMetricsSession);
+            }
+            preloadNeighbours();
+            startThumbnails(snapshot.durationMs);
 
             // Get the capabilities of the player for this stream
 //            Metadata data = mp.getMetadata(MediaPlayer.METADATA_ALL,
@@ -335,21 +1235,21 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
             mCanSeekForward = true;
 
             if (mOnPreparedListener != null) {
-                mOnPreparedListener.onPrepared(mMediaPlayer);
+                mOnPreparedListener.onPrepared(MyVideoView.this);
             }
             if (mMediaController != null) {
                 mMediaController.setEnabled(true);
             }
-            mVideoWidth = mp.getVideoWidth();
-            mVideoHeight = mp.getVideoHeight();
+            mVideoWidth = snapshot.videoWidth;
+            mVideoHeight = snapshot.videoHeight;
 
             int seekToPosition = mSeekWhenPrepared;  // mSeekWhenPrepared may be changed after seekTo() call
             if (seekToPosition != 0) {
-                seekTo(seekToPosition);
+                seekTo((long) seekToPosition, mSeekModeWhenPrepared);
             }
             if (mVideoWidth != 0 && mVideoHeight != 0) {
                 //Log.i("@@@@", "video size: " + mVideoWidth +"/"+ mVideoHeight);
-                getHolder().setFixedSize(mVideoWidth, mVideoHeight);
+                mRenderTarget.setBufferSize(mVideoWidth, mVideoHeight);
                 if (mSurfaceWidth == mVideoWidth && mSurfaceHeight == mVideoHeight) {
                     // We didn't actually change the size (it was already at the size
                     // we need), so we won't get a "surface changed" callback, so
@@ -374,27 +1274,96 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
                     start();
                 }
             }
+            PlaybackTrace.endSection();
         }
-    };
 
-    private MediaPlayer.OnCompletionListener mCompletionListener =
-        new MediaPlayer.OnCompletionListener() {
-        public void onCompletion(MediaPlayer mp) {
+        public void onCompletion() {
+            if (mGapless && hasNext()) {
+                // the engine couldn't chain the next item, open it now
+                mTargetState = STATE_PLAYING;
+                playItem(mPlaylistIndex + 1);
+                return;
+            }
+            setKeepScreenOn(false);
             mCurrentState = STATE_PLAYBACK_COMPLETED;
             mTargetState = STATE_PLAYBACK_COMPLETED;
             if (mMediaController != null) {
                 mMediaController.hide();
             }
             if (mOnCompletionListener != null) {
-                mOnCompletionListener.onCompletion(mMediaPlayer);
+                mOnCompletionListener.onCompletion(MyVideoView.this);
+            }
+        }
+
+        public void onNextStarted() {
+            PlaybackEngine.Snapshot snapshot = mEngine.getSnapshot();
+            mPlaylistIndex++;
+            mUri = mPlaylist.get(mPlaylistIndex);
+            mHeaders = null;
+            mSeekWhenPrepared = 0;
+            // the chained player's, getDuration() asks again if not known
+            mDuration = snapshot.durationMs;
+            probeMediaInfo();
+            preloadNeighbours();
+            startThumbnails(snapshot.durationMs);
+            if (snapshot.videoWidth != mVideoWidth || snapshot.videoHeight != mVideoHeight) {
+                onVideoSizeChanged(snapshot.videoWidth, snapshot.videoHeight);
+            }
+            if (mMediaController != null) {
+                mMediaController.setPrevNextListeners(hasNext() ? mNextListener : null,
+                        hasPrevious() ? mPrevListener : null);
+            }
+            if (mOnInfoListener != null) {
+                mOnInfoListener.onInfo(MyVideoView.this, MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT, 0);
+            }
+        }
+
+        public void onInfo(int what, int extra) {
+            if (what == MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START) {
+                PlaybackTrace.markFirst(PlaybackTrace.FIRST_FRAME);
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Startup of " + mUri + ":\n" + getStartupTimeline());
+                }
+            }
+            if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START && mBufferPolicy != null
+                    && mCurrentState == STATE_PLAYING && getBufferedAheadMs() >= 0) {
+                // hold playback until the policy's resume amount is in,
+                // rather than the player's own, usually smaller one
+                mEngine.pause();
+                mWaitingForBuffer = true;
+                mRebuffering = true;
+                scheduleBufferCheck();
+            }
+            if (mMetrics != null) {
+                switch (what) {
+                    case MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START:
+                        mMetrics.onFirstFrame(mMetricsSession);
+                        break;
+                    case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+                        mMetrics.onBufferingStart(mMetricsSession);
+                        break;
+                    case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+                        mMetrics.onBufferingEnd(mMetricsSession);
+                        break;
+                }
+            }
+            if (mOnInfoListener != null) {
+                mOnInfoListener.onInfo(MyVideoView.this, what, extra);
+            }
+        }
+
+        public void onSeekComplete() {
+            if (mMetrics != null) {
+                mMetrics.onSeekComplete(mMetricsSession);
             }
         }
-    };
 
-    private MediaPlayer.OnErrorListener mErrorListener =
-        new MediaPlayer.OnErrorListener() {
-        public boolean onError(MediaPlayer mp, int framework_err, int impl_err) {
+        public void onError(int framework_err, int impl_err) {
             Log.d(TAG, "Error: " + framework_err + "," + impl_err);
+            if (mMetrics != null) {
+                mMetrics.onError(mMetricsSession);
+            }
+            setKeepScreenOn(false);
             mCurrentState = STATE_ERROR;
             mTargetState = STATE_ERROR;
             if (mMediaController != null) {
@@ -403,8 +1372,8 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
 
             /* If an error handler has been supplied, use it and finish. */
             if (mOnErrorListener != null) {
-                if (mOnErrorListener.onError(mMediaPlayer, framework_err, impl_err)) {
-                    return true;
+                if (mOnErrorListener.onError(MyVideoView.this, framework_err, impl_err)) {
+                    return;
                 }
             }
 
@@ -432,23 +1401,39 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
                                          * at least inform them that the video is over.
                                          */
                                         if (mOnCompletionListener != null) {
-                                            mOnCompletionListener.onCompletion(mMediaPlayer);
+                                            mOnCompletionListener.onCompletion(MyVideoView.this);
                                         }
                                     }
                                 })
                         .setCancelable(false)
                         .show();
             }
-            return true;
         }
     };
 
-    private MediaPlayer.OnBufferingUpdateListener mBufferingUpdateListener =
-        new MediaPlayer.OnBufferingUpdateListener() {
-        public void onBufferingUpdate(MediaPlayer mp, int percent) {
-            mCurrentBufferPercentage = percent;
-        }
-    };
+    /*
+     * Like MediaPlayer's listeners, but handing over the view: the player
+     * itself belongs to the engine thread.
+     */
+    public interface OnPreparedListener {
+        void onPrepared(MyVideoView view);
+    }
+
+    public interface OnCompletionListener {
+        void onCompletion(MyVideoView view);
+    }
+
+    public interface OnErrorListener {
+        /**
+         * @return Whether the error was handled; if not the view shows a
+         * dialog.
+         */
+        boolean onError(MyVideoView view, int what, int extra);
+    }
+
+    public interface OnInfoListener {
+        boolean onInfo(MyVideoView view, int what, int extra);
+    }
 
     /**
      * Register a callback to be invoked when the media file
@@ -456,11 +1441,26 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
      *
      * @param l The callback that will be run
      */
-    public void setOnPreparedListener(MediaPlayer.OnPreparedListener l)
+    public void setOnPreparedListener(OnPreparedListener l)
     {
         mOnPreparedListener = l;
     }
 
+    /**
+     * @deprecated The player belongs to the {@link PlaybackEngine} thread,
+     * so l gets null instead of it; use
+     * {@link #setOnPreparedListener(OnPreparedListener)}.
+     */
+    @Deprecated
+    public void setOnPreparedListener(final MediaPlayer.OnPreparedListener l)
+    {
+        setOnPreparedListener(l == null ? null : new OnPreparedListener() {
+            public void onPrepared(MyVideoView view) {
+                l.onPrepared(null);
+            }
+        });
+    }
+
     /**
      * Register a callback to be invoked when the end of a media file
      * has been reached during playback.
@@ -472,6 +1472,20 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
         mOnCompletionListener = l;
     }
 
+    /**
+     * @deprecated l gets null instead of the player, use
+     * {@link #setOnCompletionListener(OnCompletionListener)}.
+     */
+    @Deprecated
+    public void setOnCompletionListener(final MediaPlayer.OnCompletionListener l)
+    {
+        setOnCompletionListener(l == null ? null : new OnCompletionListener() {
+            public void onCompletion(MyVideoView view) {
+                l.onCompletion(null);
+            }
+        });
+    }
+
     /**
      * Register a callback to be invoked when an error occurs
      * during playback or setup.  If no listener is specified,
@@ -485,6 +1499,20 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
         mOnErrorListener = l;
     }
 
+    /**
+     * @deprecated l gets null instead of the player, use
+     * {@link #setOnErrorListener(OnErrorListener)}.
+     */
+    @Deprecated
+    public void setOnErrorListener(final MediaPlayer.OnErrorListener l)
+    {
+        setOnErrorListener(l == null ? null : new OnErrorListener() {
+            public boolean onError(MyVideoView view, int what, int extra) {
+                return l.onError(null, what, extra);
+            }
+        });
+    }
+
     /**
      * Register a callback to be invoked when an informational event
      * occurs during playback or setup.
@@ -495,35 +1523,64 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
         mOnInfoListener = l;
     }
 
-    SurfaceHolder.Callback mSHCallback = new SurfaceHolder.Callback()
+    /**
+     * @deprecated l gets null instead of the player, use
+     * {@link #setOnInfoListener(OnInfoListener)}.
+     */
+    @Deprecated
+    public void setOnInfoListener(final MediaPlayer.OnInfoListener l) {
+        setOnInfoListener(l == null ? null : new OnInfoListener() {
+            public boolean onInfo(MyVideoView view, int what, int extra) {
+                return l.onInfo(null, what, extra);
+            }
+        });
+    }
+
+    private RenderTarget.Callback mRenderCallback = new RenderTarget.Callback()
     {
-        public void surfaceChanged(SurfaceHolder holder, int format,
-                                    int w, int h)
+        public void onSurfaceChanged(RenderTarget target, int w, int h)
         {
             mSurfaceWidth = w;
             mSurfaceHeight = h;
             boolean isValidState =  (mTargetState == STATE_PLAYING);
             boolean hasValidSize = (mVideoWidth == w && mVideoHeight == h);
-            if (mMediaPlayer != null && isValidState && hasValidSize) {
+            if (mEngine.isOpen() && isValidState && hasValidSize) {
                 if (mSeekWhenPrepared != 0) {
-                    seekTo(mSeekWhenPrepared);
+                    seekTo((long) mSeekWhenPrepared, mSeekModeWhenPrepared);
                 }
                 start();
             }
         }
 
-        public void surfaceCreated(SurfaceHolder holder)
+        public void onSurfaceCreated(RenderTarget target)
         {
-            mSurfaceHolder = holder;
-            openVideo();
+            PlaybackTrace.mark(PlaybackTrace.SURFACE_CREATED);
+            if (mEngine.isOpen()) {
+                // prepare started before the window was laid out, or the
+                // player was retained while we had no surface
+                target.attach(mEngine);
+                if (mRetained) {
+                    mRetained = false;
+                    removeCallbacks(mReleaseRetained);
+                    if (mTargetState != STATE_PLAYING) {
+                        // repaint the paused frame; playing resumes in surfaceChanged()
+                        mEngine.seekTo(getCurrentPosition(), SEEK_DEFAULT);
+                    }
+                }
+            } else {
+                openVideo();
+            }
         }
 
-        public void surfaceDestroyed(SurfaceHolder holder)
+        public void onSurfaceDestroyed(RenderTarget target)
         {
-            // after we return from this we can't use the surface any more
-            mSurfaceHolder = null;
+            // after we return from this we can't use the surface any more;
+            // the target has already taken the engine off it
             if (mMediaController != null) mMediaController.hide();
-            release(true);
+            if (!retainPlayer()) {
+                release(true);
+                mEngine.clearPreload();
+            }
         }
     };
 
@@ -531,11 +1588,18 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
      * release the media player in any state
      */
     private void release(boolean cleartargetstate) {
-        if (mMediaPlayer != null) {
-            mMediaPlayer.reset();
-            mMediaPlayer.release();
-            mMediaPlayer = null;
+        resetBuffering();
+        removeCallbacks(mRenditionCheck);
+        mPendingRendition = -1;
+        if (mRetained) {
+            mRetained = false;
+            removeCallbacks(mReleaseRetained);
+        }
+        if (mEngine.isOpen()) {
+            // returns right away, the engine thread does the releasing
+            mEngine.reset();
             mCurrentState = STATE_IDLE;
+            setKeepScreenOn(false);
             if (cleartargetstate) {
                 mTargetState  = STATE_IDLE;
             }
@@ -571,7 +1635,7 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
         if (isInPlaybackState() && isKeyCodeSupported && mMediaController != null) {
             if (keyCode == KeyEvent.KEYCODE_HEADSETHOOK ||
                     keyCode == KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE) {
-                if (mMediaPlayer.isPlaying()) {
+                if (isPlaying()) {
                     pause();
                     mMediaController.show();
                 } else {
@@ -580,14 +1644,14 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
                 }
                 return true;
             } else if (keyCode == KeyEvent.KEYCODE_MEDIA_PLAY) {
-                if (!mMediaPlayer.isPlaying()) {
+                if (!isPlaying()) {
                     start();
                     mMediaController.hide();
                 }
                 return true;
             } else if (keyCode == KeyEvent.KEYCODE_MEDIA_STOP
                     || keyCode == KeyEvent.KEYCODE_MEDIA_PAUSE) {
-                if (mMediaPlayer.isPlaying()) {
+                if (isPlaying()) {
                     pause();
                     mMediaController.show();
                 }
@@ -610,28 +1674,59 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
 
     public void start() {
         if (isInPlaybackState()) {
-            mMediaPlayer.start();
-            mCurrentState = STATE_PLAYING;
+            if (mBufferPolicy != null && !isBuffered(false)) {
+                // mBufferCheck calls us again once there is enough
+                mWaitingForBuffer = true;
+                mRebuffering = false;
+            } else {
+                mWaitingForBuffer = false;
+                mEngine.start();
+                mCurrentState = STATE_PLAYING;
+                setKeepScreenOn(true);
+                if (mFrameMonitor != null) {
+                    mFrameMonitor.start();
+                }
+                scheduleRenditionCheck();
+            }
         }
         mTargetState = STATE_PLAYING;
+        scheduleBufferCheck();
     }
 
     public void pause() {
+        mWaitingForBuffer = false;
+        mRebuffering = false;
         if (isInPlaybackState()) {
-            if (mMediaPlayer.isPlaying()) {
-                mMediaPlayer.pause();
+            if (isPlaying()) {
+                mEngine.pause();
                 mCurrentState = STATE_PAUSED;
+                setKeepScreenOn(false);
             }
         }
         mTargetState = STATE_PAUSED;
     }
 
     public void suspend() {
-        release(false);
+        if (!retainPlayer()) {
+            release(false);
+        }
     }
 
     public void resume() {
-        openVideo();
+        if (mRetained && mRenderTarget.hasSurface()) {
+            // suspended with a live surface; just put the display back
+            mRetained = false;
+            removeCallbacks(mReleaseRetained);
+            mRenderTarget.attach(mEngine);
+            if (mTargetState == STATE_PLAYING) {
+                start();
+            }
+            return;
+        }
+        if (!mRetained) {
+            openVideo();
+        }
+        // otherwise surfaceCreated() picks the retained player up
     }
 
     // cache duration as mDuration for faster access
@@ -640,42 +1735,121 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
             if (mDuration > 0) {
                 return mDuration;
             }
-            mDuration = mMediaPlayer.getDuration();
+            mDuration = mEngine.getSnapshot().durationMs;
             return mDuration;
         }
         mDuration = -1;
+        if (mMediaInfo != null && mMediaInfo.durationUs > 0) {
+            return mMediaInfo.getDurationMs();
+        }
         return mDuration;
     }
 
     public int getCurrentPosition() {
         if (isInPlaybackState()) {
-            return mMediaPlayer.getCurrentPosition();
+            return mEngine.getCurrentPosition();
         }
         return 0;
     }
 
     public void seekTo(int msec) {
+        seekTo((long) msec, SEEK_DEFAULT);
+    }
+
+    /**
+     * Seek with the platform's accurate mode: playback resumes at exactly
+     * pos, at the cost of decoding from the preceding keyframe. See
+     * {@link #seekTo(long, int)} for where that is not available.
+     */
+    public void seekTo(long pos) {
+        seekTo(pos, SEEK_ACCURATE);
+    }
+
+    /**
+     * Seek to pos, trading precision for latency as requested.
+     *
+     * @param mode {@link MyMediaController.MediaPlayerControl#SEEK_FAST} to
+     * land on the nearest keyframe, which is what scrubbing wants, or
+     * {@link MyMediaController.MediaPlayerControl#SEEK_ACCURATE} to land on
+     * the exact frame, e.g. when resuming from a bookmark. MediaPlayer has
+     * no seek modes before API 26; there both modes fall back to
+     * seekTo(int), which on most devices lands on the keyframe before pos.
+     * The {@link PlaybackEngine#TYPE_MEDIA_CODEC} engine seeks exactly on
+     * API 16+, see {@link #setEngineSelector(PlaybackEngine.Selector)}.
+     */
+    public void seekTo(long pos, int mode) {
         if (isInPlaybackState()) {
-            mMediaPlayer.seekTo(msec);
+            if (mode == SEEK_FAST && mKeyframeIndex != null) {
+                // landing exactly on a keyframe is fast with any seek mode
+                pos = snapToKeyframe((int) pos);
+                mode = SEEK_DEFAULT;
+            }
+            if (mPendingRendition >= 0) {
+                if (!mEngine.canSwitch()) {
+                    // the player has to fetch around pos anyway, so do it
+                    // in the new rendition
+                    switchRendition(pos, mode);
+                    return;
+                }
+                // the standby follows, and the switch happens right there
+                mSwitchAtMs = (int) pos;
+                prepareSwitch();
+            }
+            if (mMetrics != null) {
+                mMetrics.onSeek(mMetricsSession);
+            }
+            if (mBufferPolicy != null) {
+                // the player will ask for bytes around pos right away
+                updateReadAhead(pos);
+            }
+            // the engine keeps at most one seek in flight while the user scrubs
+            mEngine.seekTo(pos, mode);
             mSeekWhenPrepared = 0;
         } else {
-            mSeekWhenPrepared = msec;
+            mSeekWhenPrepared = (int) pos;
+            mSeekModeWhenPrepared = mode;
         }
     }
 
+    /**
+     * Seek to the keyframe closest to msec, so the decoder can show the
+     * target frame right away instead of decoding forward from the previous
+     * keyframe. The direction of travel is kept: a seek past the current
+     * position never lands before it and vice versa. Falls back to a plain
+     * seek when no keyframe index is available.
+     */
+    public void seekToKeyframe(int msec) {
+        seekTo((long) msec, SEEK_FAST);
+    }
+
+    private int snapToKeyframe(int msec) {
+        if (mKeyframeIndex == null) {
+            return msec;
+        }
+        int current = getCurrentPosition();
+        int snapped = mKeyframeIndex.nearest(msec);
+        if (msec > current && snapped <= current) {
+            snapped = mKeyframeIndex.ceiling(current + 1);
+        } else if (msec < current && snapped >= current) {
+            snapped = mKeyframeIndex.floor(current - 1);
+        }
+        return snapped >= 0 ? snapped : msec;
+    }
+
     public boolean isPlaying() {
-        return isInPlaybackState() && mMediaPlayer.isPlaying();
+        // start() and pause() are queued, so trust the state they left behind
+        return isInPlaybackState() && mCurrentState == STATE_PLAYING;
     }
 
     public int getBufferPercentage() {
-        if (mMediaPlayer != null) {
-            return mCurrentBufferPercentage;
+        if (mEngine.isOpen()) {
+            return mEngine.getSnapshot().bufferPercentage;
         }
         return 0;
     }
 
     private boolean isInPlaybackState() {
-        return (mMediaPlayer != null &&
+        return (mEngine.isOpen() &&
                 mCurrentState != STATE_ERROR &&
                 mCurrentState != STATE_IDLE &&
                 mCurrentState != STATE_PREPARING);
@@ -692,10 +1866,4 @@ public class MyVideoView extends SurfaceView implements MyMediaController.MediaP
     public boolean canSeekForward() {
         return mCanSeekForward;
     }
-
-	@Override
-	public void seekTo(long pos) {
-		// TODO Auto-generated method stub
-		
-	}
 }
@@ -0,0 +1,63 @@
+package com.test.videoplay;
+
+import android.os.SystemClock;
+
+/**
+ * The playback position at one instant, extrapolated with the monotonic
+ * clock while the player runs. Asking MediaPlayer for its position is a
+ * binder call into mediaserver; with a clock it only has to be asked every
+ * now and then to correct drift, and the UI can read the position as often
+ * as it likes.
+ * <p>
+ * Immutable, so it can be handed between threads as is.
+ */
+public class PlaybackClock {
+    /** A clock standing still at 0. */
+    public static final PlaybackClock STOPPED = new PlaybackClock(0, -1, false, 0);
+
+    private final int mPositionMs;
+    private final int mDurationMs;
+    private final boolean mRunning;
+    private final long mSampledAt;
+
+    /**
+     * @param positionMs What the player reported.
+     * @param durationMs The duration, or -1 if unknown. Extrapolation stops
+     * there.
+     * @param running Whether the position is advancing, i.e. playing and not
+     * stalled waiting for data.
+     * @param sampledAt {@link SystemClock#uptimeMillis()} when positionMs was
+     * read.
+     */
+    public PlaybackClock(int positionMs, int durationMs, boolean running, long sampledAt) {
+        mPositionMs = positionMs;
+        mDurationMs = durationMs;
+        mRunning = running;
+        mSampledAt = sampledAt;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return The position now.
+     */
+    public int getPosition() {
+        return getPosition(SystemClock.uptimeMillis());
+    }
+
+    /**
+     * @return The position at the given {@link SystemClock#uptimeMillis()}.
+     */
+    public int getPosition(long now) {
+        if (!mRunning || now <= mSampledAt) {
+            return mPositionMs;
+        }
+        long position = mPositionMs + (now - mSampledAt);
+        if (mDurationMs > 0 && position > mDurationMs) {
+            return mDurationMs;
+        }
+        return (int) position;
+    }
+}
@@ -0,0 +1,868 @@
+package com.test.videoplay;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+/**
+ * Runs a player on a dedicated HandlerThread. Calls like setDataSource(),
+ * seekTo() and release() can block for a long time on network or content
+ * uris, so the UI thread only queues commands here and reads the
+ * {@link Snapshot} the engine publishes after every change.
+ * <p>
+ * The public methods are meant to be called from the UI thread, and the
+ * {@link Listener} is called back on it. Events of a player that was reset
+ * or replaced in the meantime are dropped.
+ * <p>
+ * Subclasses drive the actual decoder: they implement the handle* methods,
+ * which run on the engine thread, and report back through the notify*
+ * methods. See {@link MediaPlayerEngine} and {@link MediaCodecEngine}.
+ */
+public abstract class PlaybackEngine {
+    private static final String TAG = "PlaybackEngine";
+
+    /** Play with android.media.MediaPlayer, see {@link MediaPlayerEngine}. */
+    public static final int TYPE_MEDIA_PLAYER = 0;
+    /** Play with MediaExtractor and MediaCodec, see {@link MediaCodecEngine}. */
+    public static final int TYPE_MEDIA_CODEC = 1;
+
+    // how often the clock is resynced with the player while playing; in
+    // between, positions are extrapolated
+    private static final int SAMPLE_INTERVAL_MS = 1000;
+    // how long clearDisplay() waits for the engine thread, which may be
+    // stuck in a blocking player call
+    private static final int CLEAR_DISPLAY_TIMEOUT_MS = 1000;
+    // how long to wait for a seek to complete before assuming the player
+    // dropped the notification; network seeks can take a while
+    private static final int SEEK_TIMEOUT_MS = 5000;
+
+    // commands, handled on the engine thread
+    private static final int MSG_OPEN = 1;
+    private static final int MSG_START = 2;
+    private static final int MSG_PAUSE = 3;
+    private static final int MSG_SEEK = 4;
+    private static final int MSG_RESET = 5;
+    private static final int MSG_PRELOAD = 6;
+    private static final int MSG_SET_CACHE_PROXY = 7;
+    private static final int MSG_SAMPLE = 8;
+    private static final int MSG_QUIT = 9;
+    private static final int MSG_SET_DISPLAY = 10;
+    private static final int MSG_SET_SURFACE = 11;
+    private static final int MSG_TRIM_MEMORY = 12;
+    private static final int MSG_SET_NEXT = 13;
+    private static final int MSG_CLEAR_DISPLAY = 14;
+    private static final int MSG_PREPARE_SWITCH = 15;
+    private static final int MSG_SWITCH = 16;
+    private static final int MSG_SEEK_TIMEOUT = 17;
+
+    // events, handled on the UI thread
+    private static final int EVENT_PREPARED = 1;
+    private static final int EVENT_VIDEO_SIZE = 2;
+    private static final int EVENT_COMPLETION = 3;
+    private static final int EVENT_ERROR = 4;
+    private static final int EVENT_INFO = 5;
+    private static final int EVENT_NEXT_STARTED = 6;
+    private static final int EVENT_SEEK_COMPLETE = 7;
+
+    /**
+     * Player events, called on the UI thread.
+     */
+    public interface Listener {
+        void onPrepared();
+        void onVideoSizeChanged(int width, int height);
+        void onCompletion();
+        void onError(int what, int extra);
+        void onInfo(int what, int extra);
+        /**
+         * The player moved on to the video given to
+         * {@link PlaybackEngine#setNext(Uri, Uri, Map)} without a gap. The
+         * snapshot already describes the new video.
+         */
+        void onNextStarted();
+        /**
+         * The player got to the last position asked for with
+         * {@link PlaybackEngine#seekTo(long, int)}.
+         */
+        void onSeekComplete();
+    }
+
+    /**
+     * Picks the engine to play a uri with.
+     */
+    public interface Selector {
+        /**
+         * @return {@link #TYPE_MEDIA_PLAYER} or {@link #TYPE_MEDIA_CODEC}.
+         */
+        int select(Uri uri);
+    }
+
+    /**
+     * What the player looked like the last time the engine thread asked it.
+     * Reading it never talks to the player.
+     */
+    public static class Snapshot {
+        static final Snapshot IDLE = new Snapshot(false, false, PlaybackClock.STOPPED, -1, 0, 0, 0);
+
+        public final boolean prepared;
+        public final boolean playing;
+        public final PlaybackClock clock;
+        public final int durationMs;
+        public final int videoWidth;
+        public final int videoHeight;
+        public final int bufferPercentage;
+
+        Snapshot(boolean prepared, boolean playing, PlaybackClock clock, int durationMs,
+                int videoWidth, int videoHeight, int bufferPercentage) {
+            this.prepared = prepared;
+            this.playing = playing;
+            this.clock = clock;
+            this.durationMs = durationMs;
+            this.videoWidth = videoWidth;
+            this.videoHeight = videoHeight;
+            this.bufferPercentage = bufferPercentage;
+        }
+    }
+
+    private static class OpenRequest {
+        final int session;
+        final Uri uri;
+        final Uri dataUri;
+        final Map<String, String> headers;
+
+        OpenRequest(int session, Uri uri, Uri dataUri, Map<String, String> headers) {
+            this.session = session;
+            this.uri = uri;
+            this.dataUri = dataUri;
+            this.headers = headers;
+        }
+    }
+
+    private static class SwitchRequest extends OpenRequest {
+        final int token;
+        final int positionMs;
+
+        SwitchRequest(int session, int token, Uri uri, Uri dataUri, Map<String, String> headers,
+                int positionMs) {
+            super(session, uri, dataUri, headers);
+            this.token = token;
+            this.positionMs = positionMs;
+        }
+    }
+
+    protected final Context mContext;
+    private final Handler mMainHandler;
+
+    // UI thread state
+    private Listener mListener;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private boolean mOpen;
+    private boolean mQuit;
+    // counts prepareSwitch() calls, so a standby readied for an earlier one
+    // doesn't count
+    private int mSwitchToken;
+
+    // shared between the threads
+    private volatile int mSession;
+    private volatile Snapshot mSnapshot = Snapshot.IDLE;
+    private final AtomicLong mSeekTarget = new AtomicLong(-1);
+    private volatile int mSwitchReady;
+
+    // engine thread state
+    private int mPlayerSession;
+    private int mPlayerSwitchToken;
+    private VideoCacheProxy mCacheProxy;
+    private boolean mPrepared;
+    private boolean mPlaying;
+    private boolean mStalled;  // between MEDIA_INFO_BUFFERING_START and _END
+    private PlaybackClock mClock = PlaybackClock.STOPPED;
+    private int mDuration;
+    private int mVideoWidth;
+    private int mVideoHeight;
+    private int mBufferPercentage;
+    private final SeekCoalescer mSeekCoalescer = new SeekCoalescer(new SeekCoalescer.Target() {
+        public void performSeek(long pos, int mode) {
+            mHandler.removeMessages(MSG_SEEK_TIMEOUT);
+            mHandler.sendEmptyMessageDelayed(MSG_SEEK_TIMEOUT, SEEK_TIMEOUT_MS);
+            handleSeek(pos, mode);
+        }
+    });
+
+    protected PlaybackEngine(Context context) {
+        mContext = context;
+        mMainHandler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                dispatchEvent(msg);
+            }
+        };
+    }
+
+    /**
+     * @param type {@link #TYPE_MEDIA_PLAYER} or {@link #TYPE_MEDIA_CODEC}.
+     * MediaCodec needs API 16; below that a MediaPlayer engine is returned.
+     */
+    public static PlaybackEngine create(Context context, int type) {
+        if (type == TYPE_MEDIA_CODEC && MediaCodecEngine.isSupported()) {
+            return new MediaCodecEngine(context);
+        }
+        return new MediaPlayerEngine(context);
+    }
+
+    /**
+     * @return {@link #TYPE_MEDIA_PLAYER} or {@link #TYPE_MEDIA_CODEC}.
+     */
+    public abstract int getType();
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Anything the engine fetches ahead of time goes through this proxy.
+     */
+    public void setCacheProxy(VideoCacheProxy proxy) {
+        send(MSG_SET_CACHE_PROXY, 0, proxy);
+    }
+
+    /**
+     * Replace the current player with one playing uri.
+     * <p>
+     * The player prepares without a display; {@link #setDisplay(SurfaceHolder)}
+     * or {@link #setSurface(Surface)} attach one once the surface exists, so
+     * prepare overlaps with layout and window creation.
+     *
+     * @param dataUri What to actually hand to setDataSource(), e.g. the
+     * proxied version of uri.
+     */
+    public void open(Uri uri, Uri dataUri, Map<String, String> headers) {
+        newSession();
+        mOpen = true;
+        send(MSG_OPEN, 0, new OpenRequest(mSession, uri, dataUri, headers));
+    }
+
+    /**
+     * Show the video of the current player on holder.
+     */
+    public void setDisplay(SurfaceHolder holder) {
+        send(MSG_SET_DISPLAY, 0, holder);
+    }
+
+    /**
+     * Show the video of the current player on surface, e.g. one made from
+     * a TextureView's SurfaceTexture.
+     */
+    public void setSurface(Surface surface) {
+        send(MSG_SET_SURFACE, 0, surface);
+    }
+
+    /**
+     * Take the video off its display or surface and wait until the engine
+     * thread has let go of it. setDisplay(null) returns while the player may
+     * still draw; call this instead when the surface is about to be
+     * destroyed.
+     *
+     * @return Whether the engine let go in time; it gives up after a second,
+     * when the engine thread is stuck in a blocking player call.
+     */
+    public boolean clearDisplay() {
+        final CountDownLatch cleared = new CountDownLatch(1);
+        clearDisplay(new Runnable() {
+            public void run() {
+                cleared.countDown();
+            }
+        });
+        try {
+            return cleared.await(CLEAR_DISPLAY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Take the video off its display or surface without waiting, and run
+     * onCleared once the engine thread has let go of it. It runs on the
+     * engine thread, or right away if the engine thread is not running.
+     */
+    public void clearDisplay(Runnable onCleared) {
+        if (mHandler != null) {
+            // displays still queued would be set after this, on a dead surface
+            mHandler.removeMessages(MSG_SET_DISPLAY);
+            mHandler.removeMessages(MSG_SET_SURFACE);
+            if (mHandler.sendMessageAtFrontOfQueue(
+                    mHandler.obtainMessage(MSG_CLEAR_DISPLAY, onCleared))) {
+                return;
+            }
+        }
+        // never started, or quit; no player draws anywhere
+        onCleared.run();
+    }
+
+    public void start() {
+        send(MSG_START, 0, null);
+    }
+
+    public void pause() {
+        send(MSG_PAUSE, 0, null);
+    }
+
+    /**
+     * Seek with one of the MediaPlayerControl seek modes, or -1 for
+     * MediaPlayer.seekTo(int). Until the player catches up
+     * {@link #getCurrentPosition()} reports pos.
+     */
+    public void seekTo(long pos, int mode) {
+        mSeekTarget.set(pos);
+        send(MSG_SEEK, mode, Long.valueOf(pos));
+    }
+
+    /**
+     * Release the current player. Returns right away, the player is
+     * released on the engine thread.
+     */
+    public void reset() {
+        if (mOpen) {
+            newSession();
+            mOpen = false;
+            send(MSG_RESET, 0, null);
+        }
+    }
+
+    /**
+     * Prepare uri in the background and switch to it without a gap when the
+     * current video ends; {@link Listener#onNextStarted()} reports the switch.
+     * Engines that cannot chain players ignore this and report
+     * {@link Listener#onCompletion()} as usual.
+     *
+     * @param uri The video to play next, or null for none.
+     */
+    public void setNext(Uri uri, Uri dataUri, Map<String, String> headers) {
+        if (mOpen) {
+            send(MSG_SET_NEXT, 0, new OpenRequest(mSession, uri, dataUri, headers));
+        }
+    }
+
+    /**
+     * Prepare uri, another encoding of the video playing, on a standby
+     * player positioned at positionMs. Once {@link #isSwitchReady()},
+     * {@link #switchNow()} puts it in place of the current player without
+     * the user seeing it prepare or seek. The players of
+     * {@link #preload(List)} are left alone. Engines that cannot do this,
+     * see {@link #canSwitch()}, ignore it.
+     *
+     * @param uri The video, or null to drop the standby. Calling this again
+     * for the same uri only moves the standby to the new position.
+     */
+    public void prepareSwitch(Uri uri, Uri dataUri, Map<String, String> headers,
+            int positionMs) {
+        if (mOpen) {
+            mSwitchToken++;
+            send(MSG_PREPARE_SWITCH, 0,
+                    new SwitchRequest(mSession, mSwitchToken, uri, dataUri, headers, positionMs));
+        }
+    }
+
+    /**
+     * @return Whether the standby player of the last
+     * {@link #prepareSwitch(Uri, Uri, Map, int)} is prepared and positioned.
+     */
+    public boolean isSwitchReady() {
+        return mOpen && mSwitchReady == mSwitchToken;
+    }
+
+    /**
+     * Replace the current player with the standby one, keeping display and
+     * play state. Playback continues at the standby's position.
+     *
+     * @return Whether it will, false if the standby is not ready.
+     */
+    public boolean switchNow() {
+        if (!isSwitchReady()) {
+            return false;
+        }
+        send(MSG_SWITCH, mSwitchToken, null);
+        // the standby is used up
+        mSwitchToken++;
+        return true;
+    }
+
+    /**
+     * @return Whether the engine can run a standby player next to the
+     * current one, see {@link #prepareSwitch(Uri, Uri, Map, int)}.
+     */
+    public boolean canSwitch() {
+        return false;
+    }
+
+    /**
+     * Get these uris ready for playback in the background, so that opening
+     * one of them later is quick. Engines that cannot do this ignore it.
+     */
+    public void preload(List<Uri> uris) {
+        send(MSG_PRELOAD, 0, uris);
+    }
+
+    /**
+     * Drop everything {@link #preload(List)} set up.
+     */
+    public void clearPreload() {
+        preload(Collections.<Uri>emptyList());
+    }
+
+    /**
+     * The system is short of memory, see ComponentCallbacks2. Engines drop
+     * what they keep around only to be faster next time.
+     */
+    public void trimMemory(int level) {
+        if (mHandler != null) {
+            send(MSG_TRIM_MEMORY, level, null);
+        }
+    }
+
+    /**
+     * Release the player and anything preloaded and stop the engine thread.
+     * The engine ignores any further commands.
+     */
+    public void quit() {
+        if (!mQuit) {
+            newSession();
+            mOpen = false;
+            mQuit = true;
+            if (mHandler != null) {
+                mHandler.sendEmptyMessage(MSG_QUIT);
+            }
+        }
+    }
+
+    /**
+     * @return Whether a player was opened and not reset since.
+     */
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    public int getCurrentPosition() {
+        long seekTarget = mSeekTarget.get();
+        if (seekTarget >= 0) {
+            // report where we are going, not the intermediate seeks
+            return (int) seekTarget;
+        }
+        return mSnapshot.clock.getPosition();
+    }
+
+    private void newSession() {
+        mSession++;
+        mSwitchToken++;
+        mSeekTarget.set(-1);
+        mSnapshot = Snapshot.IDLE;
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void send(int what, int arg1, Object obj) {
+        if (mQuit) {
+            return;
+        }
+        if (mHandler == null) {
+            // started on first use, so an engine that never plays costs no thread
+            mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_AUDIO);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    handleCommand(msg);
+                }
+            };
+        }
+        mHandler.obtainMessage(what, arg1, 0, obj).sendToTarget();
+    }
+
+    private void dispatchEvent(Message msg) {
+        if (mListener == null || ((Integer) msg.obj).intValue() != mSession) {
+            return;
+        }
+        switch (msg.what) {
+            case EVENT_PREPARED:
+                mListener.onPrepared();
+                break;
+            case EVENT_VIDEO_SIZE:
+                mListener.onVideoSizeChanged(msg.arg1, msg.arg2);
+                break;
+            case EVENT_COMPLETION:
+                mListener.onCompletion();
+                break;
+            case EVENT_ERROR:
+                mListener.onError(msg.arg1, msg.arg2);
+                break;
+            case EVENT_INFO:
+                mListener.onInfo(msg.arg1, msg.arg2);
+                break;
+            case EVENT_NEXT_STARTED:
+                mListener.onNextStarted();
+                break;
+            case EVENT_SEEK_COMPLETE:
+                mListener.onSeekComplete();
+                break;
+        }
+    }
+
+    // ---- everything below runs on the engine thread ----
+
+    @SuppressWarnings("unchecked")
+    private void handleCommand(Message msg) {
+        switch (msg.what) {
+            case MSG_OPEN:
+                OpenRequest request = (OpenRequest) msg.obj;
+                releasePlayer();
+                mPlayerSession = request.session;
+                mStalled = false;
+                mBufferPercentage = 0;
+                handleOpen(request.uri, request.dataUri, request.headers);
+                break;
+            case MSG_SET_DISPLAY:
+                handleSetDisplay((SurfaceHolder) msg.obj);
+                break;
+            case MSG_SET_SURFACE:
+                handleSetSurface((Surface) msg.obj);
+                break;
+            case MSG_CLEAR_DISPLAY:
+                handleSetDisplay(null);
+                ((Runnable) msg.obj).run();
+                break;
+            case MSG_START:
+                if (mPrepared) {
+                    handleStart();
+                    sample();
+                    publish();
+                }
+                break;
+            case MSG_PAUSE:
+                if (mPrepared && isPlayerPlaying()) {
+                    handlePause();
+                    sample();
+                    publish();
+                }
+                break;
+            case MSG_SEEK:
+                long pos = ((Long) msg.obj).longValue();
+                if (mPrepared) {
+                    mSeekCoalescer.seek(pos, msg.arg1);
+                } else {
+                    // dropped, so stop reporting it as the position
+                    mSeekTarget.compareAndSet(pos, -1);
+                }
+                break;
+            case MSG_RESET:
+                releasePlayer();
+                break;
+            case MSG_PRELOAD:
+                handlePreload((List<Uri>) msg.obj);
+                break;
+            case MSG_SET_CACHE_PROXY:
+                mCacheProxy = (VideoCacheProxy) msg.obj;
+                handleSetCacheProxy(mCacheProxy);
+                break;
+            case MSG_SAMPLE:
+                if (mPrepared) {
+                    sample();
+                    publish();
+                }
+                break;
+            case MSG_SEEK_TIMEOUT:
+                if (mPrepared && mSeekCoalescer.isSeeking()) {
+                    // otherwise the coalescer would hold every later seek
+                    Log.w(TAG, "No seek completion within " + SEEK_TIMEOUT_MS + " ms");
+                    notifySeekComplete();
+                }
+                break;
+            case MSG_SET_NEXT:
+                OpenRequest next = (OpenRequest) msg.obj;
+                if (next.session == mPlayerSession) {
+                    handleSetNext(next.uri, next.dataUri, next.headers);
+                }
+                break;
+            case MSG_PREPARE_SWITCH:
+                SwitchRequest standby = (SwitchRequest) msg.obj;
+                if (standby.session == mPlayerSession && mPrepared) {
+                    mPlayerSwitchToken = standby.token;
+                    handlePrepareSwitch(standby.uri, standby.dataUri, standby.headers,
+                            standby.positionMs);
+                }
+                break;
+            case MSG_SWITCH:
+                if (mPrepared && msg.arg1 == mPlayerSwitchToken && handleSwitch()) {
+                    mHandler.removeMessages(MSG_SEEK_TIMEOUT);
+                    mSeekCoalescer.reset();
+                    mStalled = false;
+                    sample();
+                    publish();
+                }
+                break;
+            case MSG_TRIM_MEMORY:
+                handleTrimMemory(msg.arg1);
+                break;
+            case MSG_QUIT:
+                releasePlayer();
+                handleQuit();
+                Looper.myLooper().quit();
+                break;
+        }
+    }
+
+    /**
+     * @return The engine thread's handler, for subclasses that need to
+     * schedule their own work on it.
+     */
+    protected Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * @return The cache proxy as of the engine thread, or null.
+     */
+    protected VideoCacheProxy getCacheProxy() {
+        return mCacheProxy;
+    }
+
+    /**
+     * Set up a player for dataUri and start preparing it. Call
+     * {@link #notifyPrepared(int, int, int)} when done, or
+     * {@link #notifyError(int, int)}.
+     */
+    protected abstract void handleOpen(Uri uri, Uri dataUri, Map<String, String> headers);
+
+    /**
+     * Draw on holder from now on; null detaches the display.
+     */
+    protected abstract void handleSetDisplay(SurfaceHolder holder);
+
+    /**
+     * Draw on surface from now on; null detaches the display.
+     */
+    protected abstract void handleSetSurface(Surface surface);
+
+    protected abstract void handleStart();
+
+    protected abstract void handlePause();
+
+    /**
+     * Seek to pos; call {@link #notifySeekComplete()} once there. At most
+     * one seek is handed out at a time.
+     *
+     * @param mode A MediaPlayerControl seek mode, or -1 for the platform
+     * default.
+     */
+    protected abstract void handleSeek(long pos, int mode);
+
+    /**
+     * Release the current player, if any.
+     */
+    protected abstract void handleRelease();
+
+    /**
+     * Get uri ready to follow the current player, see
+     * {@link #setNext(Uri, Uri, Map)}; null drops what was set before. Call
+     * {@link #notifyNextStarted(int, int, int)} once it took over.
+     */
+    protected void handleSetNext(Uri uri, Uri dataUri, Map<String, String> headers) {
+    }
+
+    protected void handlePreload(List<Uri> uris) {
+    }
+
+    /**
+     * Prepare uri on a standby player and move it to positionMs, see
+     * {@link #prepareSwitch(Uri, Uri, Map, int)}; null releases the standby.
+     * Call {@link #notifySwitchReady()} once it is there.
+     */
+    protected void handlePrepareSwitch(Uri uri, Uri dataUri, Map<String, String> headers,
+            int positionMs) {
+    }
+
+    /**
+     * Make the ready standby player the current one. Report a different
+     * video size with {@link #notifyVideoSizeChanged(int, int)}.
+     *
+     * @return Whether it did.
+     */
+    protected boolean handleSwitch() {
+        return false;
+    }
+
+    protected void handleSetCacheProxy(VideoCacheProxy proxy) {
+    }
+
+    /**
+     * Release caches, see {@link #trimMemory(int)}.
+     */
+    protected void handleTrimMemory(int level) {
+    }
+
+    /**
+     * The engine thread is about to end; release anything still held.
+     */
+    protected void handleQuit() {
+    }
+
+    /**
+     * @return Where the player is. Asked once a second while playing and on
+     * state changes; in between the position is extrapolated.
+     */
+    protected abstract int getPlayerPosition();
+
+    protected abstract boolean isPlayerPlaying();
+
+    protected boolean isPrepared() {
+        return mPrepared;
+    }
+
+    private void releasePlayer() {
+        mHandler.removeMessages(MSG_SAMPLE);
+        mHandler.removeMessages(MSG_SEEK_TIMEOUT);
+        mSeekCoalescer.reset();
+        mSeekTarget.set(-1);
+        mPrepared = false;
+        mPlaying = false;
+        mClock = PlaybackClock.STOPPED;
+        handleRelease();
+    }
+
+    /*
+     * Ask the player where it is. This is the only place that reads the
+     * position from the player; everybody else extrapolates from mClock.
+     */
+    private void sample() {
+        mPlaying = isPlayerPlaying();
+        boolean running = mPlaying && !mStalled && !mSeekCoalescer.isSeeking();
+        mClock = new PlaybackClock(getPlayerPosition(), mDuration, running,
+                SystemClock.uptimeMillis());
+        mHandler.removeMessages(MSG_SAMPLE);
+        if (mPlaying) {
+            mHandler.sendEmptyMessageDelayed(MSG_SAMPLE, SAMPLE_INTERVAL_MS);
+        }
+    }
+
+    private void publish() {
+        if (!mPrepared || mPlayerSession != mSession) {
+            // the UI has moved on, don't overwrite its snapshot
+            return;
+        }
+        mSnapshot = new Snapshot(true, mPlaying, mClock, mDuration, mVideoWidth, mVideoHeight,
+                mBufferPercentage);
+    }
+
+    private void postEvent(int what, int arg1, int arg2) {
+        mMainHandler.obtainMessage(what, arg1, arg2, Integer.valueOf(mPlayerSession))
+                .sendToTarget();
+    }
+
+    protected void notifyPrepared(int durationMs, int videoWidth, int videoHeight) {
+        mPrepared = true;
+        mDuration = durationMs;
+        mVideoWidth = videoWidth;
+        mVideoHeight = videoHeight;
+        sample();
+        publish();
+        postEvent(EVENT_PREPARED, 0, 0);
+    }
+
+    /**
+     * The next player took over from the current one, which is gone.
+     */
+    protected void notifyNextStarted(int durationMs, int videoWidth, int videoHeight) {
+        // seeks and buffering state belonged to the previous video
+        mSeekCoalescer.reset();
+        mSeekTarget.set(-1);
+        mStalled = false;
+        mBufferPercentage = 0;
+        mDuration = durationMs;
+        mVideoWidth = videoWidth;
+        mVideoHeight = videoHeight;
+        sample();
+        publish();
+        postEvent(EVENT_NEXT_STARTED, 0, 0);
+    }
+
+    /**
+     * The standby player of the last handlePrepareSwitch() is prepared and
+     * positioned.
+     */
+    protected void notifySwitchReady() {
+        mSwitchReady = mPlayerSwitchToken;
+    }
+
+    protected void notifyVideoSizeChanged(int width, int height) {
+        mVideoWidth = width;
+        mVideoHeight = height;
+        publish();
+        postEvent(EVENT_VIDEO_SIZE, width, height);
+    }
+
+    protected void notifyCompletion() {
+        if (mPrepared) {
+            sample();
+        }
+        publish();
+        postEvent(EVENT_COMPLETION, 0, 0);
+    }
+
+    protected void notifyError(int what, int extra) {
+        mHandler.removeMessages(MSG_SAMPLE);
+        mHandler.removeMessages(MSG_SEEK_TIMEOUT);
+        mSeekCoalescer.reset();
+        mSeekTarget.set(-1);
+        mPrepared = false;
+        postEvent(EVENT_ERROR, what, extra);
+    }
+
+    protected void notifyInfo(int what, int extra) {
+        if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START
+                || what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+            // don't let the clock run ahead while the player waits for data
+            mStalled = what == MediaPlayer.MEDIA_INFO_BUFFERING_START;
+            if (mPrepared) {
+                sample();
+                publish();
+            }
+        }
+        postEvent(EVENT_INFO, what, extra);
+    }
+
+    protected void notifyBufferingUpdate(int percent) {
+        mBufferPercentage = percent;
+        publish();
+    }
+
+    protected void notifySeekComplete() {
+        mHandler.removeMessages(MSG_SEEK_TIMEOUT);
+        long target = mSeekCoalescer.getTargetPosition();
+        mSeekCoalescer.onSeekComplete();
+        sample();
+        publish();
+        if (!mSeekCoalescer.isSeeking()) {
+            // unless the UI asked for another seek meanwhile
+            mSeekTarget.compareAndSet(target, -1);
+            postEvent(EVENT_SEEK_COMPLETE, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.test.videoplay;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+
+/**
+ * Quality of experience numbers for everything played by the views that
+ * share this object: how long users waited for the video to start, how
+ * often and how long it stalled, and how long seeks took.
+ * <p>
+ * The on*() calls come from {@link MyVideoView}'s state machine on the UI
+ * thread. They only read the clock and update atomics, so recording costs
+ * no allocation; {@link #getSnapshot()} may be called from any thread.
+ */
+public class PlaybackMetrics {
+    // setVideoURI() to onPrepared()
+    private final LatencyHistogram mPrepare = new LatencyHistogram();
+    // setVideoURI() to the first rendered frame
+    private final LatencyHistogram mFirstFrame = new LatencyHistogram();
+    // MEDIA_INFO_BUFFERING_START to _END
+    private final LatencyHistogram mRebuffer = new LatencyHistogram();
+    // seekTo() to the player arriving there
+    private final LatencyHistogram mSeek = new LatencyHistogram();
+    private final AtomicLong mPlaybacks = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mAbandoned = new AtomicLong();
+
+    /**
+     * What one view is measuring right now. Owned by that view's UI thread.
+     */
+    public static class Session {
+        long openedAt = -1;
+        boolean firstFrame;
+        long bufferingSince = -1;
+        long seekingSince = -1;
+    }
+
+    public Session newSession() {
+        return new Session();
+    }
+
+    public void onOpen(Session session) {
+        countAbandoned(session);
+        session.openedAt = SystemClock.elapsedRealtime();
+        session.firstFrame = false;
+        session.bufferingSince = -1;
+        session.seekingSince = -1;
+        mPlaybacks.incrementAndGet();
+    }
+
+    public void onPrepared(Session session) {
+        if (session.openedAt >= 0) {
+            mPrepare.record(SystemClock.elapsedRealtime() - session.openedAt);
+        }
+    }
+
+    public void onFirstFrame(Session session) {
+        if (session.openedAt >= 0 && !session.firstFrame) {
+            session.firstFrame = true;
+            mFirstFrame.record(SystemClock.elapsedRealtime() - session.openedAt);
+        }
+    }
+
+    public void onBufferingStart(Session session) {
+        if (session.bufferingSince < 0) {
+            session.bufferingSince = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public void onBufferingEnd(Session session) {
+        if (session.bufferingSince >= 0) {
+            mRebuffer.record(SystemClock.elapsedRealtime() - session.bufferingSince);
+            session.bufferingSince = -1;
+        }
+    }
+
+    /**
+     * A seek was issued. While scrubbing, only the first of a run of seeks
+     * starts the clock; it stops when the player arrives at the last one.
+     */
+    public void onSeek(Session session) {
+        if (session.seekingSince < 0) {
+            session.seekingSince = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public void onSeekComplete(Session session) {
+        if (session.seekingSince >= 0) {
+            mSeek.record(SystemClock.elapsedRealtime() - session.seekingSince);
+            session.seekingSince = -1;
+        }
+    }
+
+    public void onError(Session session) {
+        mErrors.incrementAndGet();
+        session.openedAt = -1;
+        session.bufferingSince = -1;
+        session.seekingSince = -1;
+    }
+
+    /**
+     * The view stopped playing; a stall or seek in progress is dropped
+     * rather than counted with a bogus duration.
+     */
+    public void onStop(Session session) {
+        countAbandoned(session);
+        session.openedAt = -1;
+        session.bufferingSince = -1;
+        session.seekingSince = -1;
+    }
+
+    private void countAbandoned(Session session) {
+        // opened but the user never saw a frame
+        if (session.openedAt >= 0 && !session.firstFrame) {
+            mAbandoned.incrementAndGet();
+        }
+    }
+
+    public Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    public static class Snapshot {
+        public final long playbacks;
+        public final long errors;
+        /** Playbacks stopped before their first frame. */
+        public final long abandoned;
+        public final LatencyHistogram.Snapshot prepare;
+        public final LatencyHistogram.Snapshot firstFrame;
+        /** The number of rebuffers is rebuffer.count. */
+        public final LatencyHistogram.Snapshot rebuffer;
+        public final LatencyHistogram.Snapshot seek;
+
+        Snapshot(PlaybackMetrics metrics) {
+            playbacks = metrics.mPlaybacks.get();
+            errors = metrics.mErrors.get();
+            abandoned = metrics.mAbandoned.get();
+            prepare = metrics.mPrepare.getSnapshot();
+            firstFrame = metrics.mFirstFrame.getSnapshot();
+            rebuffer = metrics.mRebuffer.getSnapshot();
+            seek = metrics.mSeek.getSnapshot();
+        }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("playbacks", playbacks);
+            json.put("errors", errors);
+            json.put("abandoned", abandoned);
+            json.put("prepare", prepare.toJson());
+            json.put("first_frame", firstFrame.toJson());
+            json.put("rebuffer", rebuffer.toJson());
+            json.put("seek", seek.toJson());
+            return json;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.test.videoplay;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+/**
+ * Where the time between opening a video and its first frame goes.
+ * <p>
+ * Two outputs: sections for systrace through {@link android.os.Trace} (API
+ * 18+), and a fixed size ring of events from every thread involved, the UI,
+ * the engine, the cache proxy and the header probe. Events are stamped with
+ * the playback they belong to, so {@link #getTimeline(int)} can lay out one
+ * playback's start phase by phase.
+ * <p>
+ * Static, like android.os.Trace, because the threads reporting here do not
+ * know about each other. Recording an event stores a few numbers into
+ * preallocated arrays under an uncontended lock; nothing is allocated.
+ */
+public class PlaybackTrace {
+    public static final int ACTIVITY_CREATE = 0;
+    /** arg1, arg2: the view's width and height before the change */
+    public static final int CONFIGURATION_CHANGED = 1;
+    /** arg1, arg2: the video view's new width and height */
+    public static final int VIEW_RESIZED = 2;
+    public static final int OPEN = 3;
+    public static final int SURFACE_CREATED = 4;
+    public static final int SET_DATA_SOURCE = 5;
+    public static final int DATA_SOURCE_SET = 6;
+    /** The cache proxy opened a connection to the origin. */
+    public static final int CONNECT = 7;
+    /** The cache proxy handed the player its first bytes, from disk or origin. */
+    public static final int FIRST_BYTE = 8;
+    /** The header probe parsed the moov box. */
+    public static final int HEADER_PARSED = 9;
+    public static final int PREPARED = 10;
+    /** arg1, arg2: width and height */
+    public static final int VIDEO_SIZE = 11;
+    public static final int FIRST_FRAME = 12;
+
+    private static final String[] NAMES = {
+        "activity create", "configuration changed", "view resized", "open",
+        "surface created", "setDataSource", "data source set", "connect",
+        "first byte", "header parsed", "prepared", "video size", "first frame",
+    };
+
+    private static final int CAPACITY = 256;
+
+    private static final Object sLock = new Object();
+    private static final long[] sTimes = new long[CAPACITY];
+    private static final int[] sEvents = new int[CAPACITY];
+    private static final int[] sPlaybacks = new int[CAPACITY];
+    private static final int[] sArgs1 = new int[CAPACITY];
+    private static final int[] sArgs2 = new int[CAPACITY];
+    // total number of events ever recorded; the ring holds the last CAPACITY
+    private static int sCount;
+    // events before the first open, e.g. the activity starting, count
+    // towards the first playback, so its timeline covers a cold start
+    private static int sPlayback = 1;
+    // events already recorded for sPlayback, see markFirst()
+    private static int sSeen;
+
+    private PlaybackTrace() {
+    }
+
+    /**
+     * Start the next playback; events from now on belong to it.
+     *
+     * @return Its id, for {@link #getTimeline(int)}.
+     */
+    public static int beginPlayback() {
+        synchronized (sLock) {
+            if ((sSeen & (1 << OPEN)) != 0) {
+                sPlayback++;
+                sSeen = 0;
+            }
+            record(OPEN, 0, 0);
+            return sPlayback;
+        }
+    }
+
+    /**
+     * @return The playback events are being recorded for.
+     */
+    public static int getPlayback() {
+        synchronized (sLock) {
+            return sPlayback;
+        }
+    }
+
+    public static void mark(int event) {
+        mark(event, 0, 0);
+    }
+
+    public static void mark(int event, int arg1, int arg2) {
+        synchronized (sLock) {
+            record(event, arg1, arg2);
+        }
+    }
+
+    /**
+     * Record event only the first time it happens in the current playback.
+     * For the things that happen once per connection or per range request,
+     * where only the first one counts towards the start.
+     */
+    public static void markFirst(int event) {
+        synchronized (sLock) {
+            if ((sSeen & (1 << event)) == 0) {
+                record(event, 0, 0);
+            }
+        }
+    }
+
+    private static void record(int event, int arg1, int arg2) {
+        int slot = sCount++ % CAPACITY;
+        sTimes[slot] = SystemClock.elapsedRealtime();
+        sEvents[slot] = event;
+        sPlaybacks[slot] = sPlayback;
+        sArgs1[slot] = arg1;
+        sArgs2[slot] = arg2;
+        sSeen |= 1 << event;
+    }
+
+    /**
+     * Open a systrace section on the calling thread; sections nest and must
+     * be closed on the same thread with {@link #endSection()}.
+     */
+    public static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            TraceCompat.beginSection(name);
+        }
+    }
+
+    public static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * The events of one playback still in the ring, one per line with the
+     * milliseconds since the first of them and since the one before, e.g.
+     * <pre>
+     *  +0ms (+0) open
+     *  +4ms (+4) setDataSource
+     *  ...
+     * </pre>
+     */
+    public static String getTimeline(int playback) {
+        StringBuilder sb = new StringBuilder();
+        synchronized (sLock) {
+            long first = -1;
+            long last = 0;
+            for (int i = Math.max(0, sCount - CAPACITY); i < sCount; i++) {
+                int slot = i % CAPACITY;
+                if (sPlaybacks[slot] != playback) {
+                    continue;
+                }
+                long time = sTimes[slot];
+                if (first < 0) {
+                    first = last = time;
+                }
+                sb.append('+').append(time - first).append("ms (+").append(time - last)
+                        .append(") ").append(NAMES[sEvents[slot]]);
+                if (sArgs1[slot] != 0 || sArgs2[slot] != 0) {
+                    sb.append(' ').append(sArgs1[slot]).append('x').append(sArgs2[slot]);
+                }
+                sb.append('\n');
+                last = time;
+            }
+        }
+        return sb.toString();
+    }
+
+    // keeps the API 18 class out of the verifier's way on older releases
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static class TraceCompat {
+        static void beginSection(String name) {
+            Trace.beginSection(name);
+        }
+
+        static void endSection() {
+            Trace.endSection();
+        }
+    }
+}
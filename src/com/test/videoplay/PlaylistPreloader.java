@@ -0,0 +1,159 @@
+package com.test.videoplay;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Keeps MediaPlayers for the neighbours of the current playlist item prepared
+ * in the background, without a display attached. When the user skips to one
+ * of them, {@link #take(Uri)} hands over a player that is already prepared (or
+ * at least well on its way), so only the surface needs to be attached.
+ */
+public class PlaylistPreloader {
+    private static final String TAG = "PlaylistPreloader";
+
+    private final Context mContext;
+    private final ArrayList<Standby> mStandby = new ArrayList<Standby>();
+    private VideoCacheProxy mCacheProxy;
+
+    /**
+     * A player prepared ahead of time for one uri.
+     */
+    static class Standby {
+        final Uri uri;
+        final MediaPlayer player;
+        boolean prepared;
+
+        Standby(Uri uri, MediaPlayer player) {
+            this.uri = uri;
+            this.player = player;
+        }
+    }
+
+    public PlaylistPreloader(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Preloaded players fetch through the same proxy as the video view.
+     */
+    public void setCacheProxy(VideoCacheProxy proxy) {
+        mCacheProxy = proxy;
+    }
+
+    /**
+     * Make sure exactly the given uris have a standby player. Players for
+     * uris no longer in the list are released, already running ones are kept.
+     */
+    public void preload(List<Uri> uris) {
+        Iterator<Standby> it = mStandby.iterator();
+        while (it.hasNext()) {
+            Standby standby = it.next();
+            if (!uris.contains(standby.uri)) {
+                it.remove();
+                standby.player.release();
+            }
+        }
+        for (Uri uri : uris) {
+            if (find(uri) == null) {
+                Standby standby = open(uri);
+                if (standby != null) {
+                    mStandby.add(standby);
+                }
+            }
+        }
+    }
+
+    /**
+     * Take ownership of the standby player for uri. The caller is
+     * responsible for replacing its listeners and releasing it.
+     *
+     * @return The player, or null if nothing was preloaded for uri.
+     */
+    public Standby take(Uri uri) {
+        Standby standby = find(uri);
+        if (standby != null) {
+            mStandby.remove(standby);
+            standby.player.setOnPreparedListener(null);
+            standby.player.setOnErrorListener(null);
+        }
+        return standby;
+    }
+
+    /**
+     * Release every standby player.
+     */
+    public void release() {
+        for (Standby standby : mStandby) {
+            standby.player.release();
+        }
+        mStandby.clear();
+    }
+
+    /*
+     * Same choice as MediaPlayerEngine: a memory mapping for local files and
+     * complete cache entries, the proxy for everything else.
+     */
+    private void setDataSource(MediaPlayer player, Uri uri) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            MappedDataSource source = MappedDataSource.open(uri, mCacheProxy);
+            if (source != null) {
+                player.setDataSource(source);
+                return;
+            }
+        }
+        Uri dataUri = mCacheProxy != null ? mCacheProxy.getPlayerUri(uri) : uri;
+        LocalMedia.setDataSource(player, mContext, dataUri, null);
+    }
+
+    private Standby find(Uri uri) {
+        for (Standby standby : mStandby) {
+            if (standby.uri.equals(uri)) {
+                return standby;
+            }
+        }
+        return null;
+    }
+
+    private Standby open(Uri uri) {
+        MediaPlayer player = new MediaPlayer();
+        final Standby standby = new Standby(uri, player);
+        player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            public void onPrepared(MediaPlayer mp) {
+                standby.prepared = true;
+            }
+        });
+        player.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                // drop it, the video view will open the uri the regular way
+                Log.w(TAG, "Preloading " + standby.uri + " failed: " + what + "," + extra);
+                mStandby.remove(standby);
+                mp.release();
+                return true;
+            }
+        });
+        try {
+            setDataSource(player, uri);
+            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            player.prepareAsync();
+            return standby;
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to preload " + uri, ex);
+        } catch (IllegalArgumentException ex) {
+            Log.w(TAG, "Unable to preload " + uri, ex);
+        } catch (IllegalStateException ex) {
+            Log.w(TAG, "Unable to preload " + uri, ex);
+        }
+        player.release();
+        return null;
+    }
+}
@@ -0,0 +1,430 @@
+package com.test.videoplay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Downloads a video into the {@link VideoCache} over several connections at
+ * once. The file is split into byte ranges that a small pool of connections
+ * fetch lowest offset first and write straight to their place in the
+ * pre-allocated cache file.
+ * <p>
+ * Since the cache entry records which ranges are on disk, an interrupted
+ * download resumes where it stopped when started again, and the
+ * {@link VideoCacheProxy} serves the player from the ranges as they land. A
+ * player can therefore start as soon as the first ranges are in, and a
+ * completed download plays offline.
+ * <p>
+ * Created on a proxy, downloads stop at its read-ahead limits like the
+ * player's own connection and their reads count towards its
+ * {@link BandwidthMeter}, since they take over fetching from the player.
+ */
+public class RangeDownloader {
+    private static final String TAG = "RangeDownloader";
+
+    private static final int DEFAULT_CONNECTIONS = 4;
+    private static final int CHUNK_SIZE = 512 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 15000;
+    private static final int MAX_RETRIES = 3;
+
+    /**
+     * Download events, called on the UI thread.
+     */
+    public interface Listener {
+        /**
+         * @param cachedBytes Bytes on disk, including earlier downloads.
+         * @param length The total length.
+         */
+        void onProgress(Uri uri, long cachedBytes, long length);
+        void onComplete(Uri uri);
+        /**
+         * The download stopped; starting it again resumes it.
+         */
+        void onError(Uri uri, IOException error);
+    }
+
+    private final VideoCache mCache;
+    private final VideoCacheProxy mProxy;
+    private final int mConnections;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public RangeDownloader(VideoCache cache) {
+        this(cache, DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * @param connections How many ranges to fetch at the same time per
+     * download.
+     */
+    public RangeDownloader(VideoCache cache, int connections) {
+        this(cache, null, connections);
+    }
+
+    /**
+     * Download into the proxy's cache, within its read-ahead limits, see
+     * {@link VideoCacheProxy#setReadAheadLimit(Uri, long)}.
+     */
+    public RangeDownloader(VideoCacheProxy proxy) {
+        this(proxy.getCache(), proxy, DEFAULT_CONNECTIONS);
+    }
+
+    public RangeDownloader(VideoCacheProxy proxy, int connections) {
+        this(proxy.getCache(), proxy, connections);
+    }
+
+    private RangeDownloader(VideoCache cache, VideoCacheProxy proxy, int connections) {
+        mCache = cache;
+        mProxy = proxy;
+        mConnections = connections;
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "RangeDownloader #" + mCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start downloading uri into the cache, or resume an earlier download.
+     *
+     * @param listener Notified about progress, may be null.
+     */
+    public Task download(Uri uri, Listener listener) {
+        final Task task = new Task(uri, listener);
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                task.start();
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Stop every download and the connection pool.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * One download. Its ranges are shared by up to mConnections workers.
+     */
+    public class Task {
+        private final Uri mUri;
+        private final Listener mListener;
+        private final String mUrl;
+        // [start, end) ranges still to fetch, lowest first
+        private final LinkedList<long[]> mChunks = new LinkedList<long[]>();
+        private VideoCache.Entry mEntry;
+        private int mWorkers;
+        // set once the origin ignored a Range, see switchToSequential()
+        private long[] mSequentialChunk;
+        private IOException mError;
+        private volatile boolean mCancelled;
+
+        Task(Uri uri, Listener listener) {
+            mUri = uri;
+            mListener = listener;
+            mUrl = uri.toString();
+        }
+
+        public Uri getUri() {
+            return mUri;
+        }
+
+        /**
+         * Stop downloading; what is on disk stays there for a later resume.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        void start() {
+            try {
+                mEntry = mCache.open(mUrl);
+            } catch (IOException e) {
+                postError(e);
+                return;
+            }
+            try {
+                if (mEntry.getLength() < 0 || mEntry.getMimeType() == null) {
+                    probe();
+                }
+            } catch (IOException e) {
+                finish(e);
+                return;
+            }
+            long length = mEntry.getLength();
+            if (length < 0) {
+                // no length, no ranges; a single sequential connection it is
+                synchronized (this) {
+                    mSequentialChunk = new long[] { 0, Long.MAX_VALUE };
+                    mChunks.add(mSequentialChunk);
+                }
+            } else {
+                try {
+                    mEntry.allocate(length);
+                } catch (IOException e) {
+                    finish(e);
+                    return;
+                }
+                synchronized (this) {
+                    for (long[] range : mEntry.getMissingRanges()) {
+                        for (long start = range[0]; start < range[1]; start += CHUNK_SIZE) {
+                            mChunks.add(new long[] { start, Math.min(start + CHUNK_SIZE, range[1]) });
+                        }
+                    }
+                }
+            }
+            int workers;
+            synchronized (this) {
+                workers = Math.min(mConnections, mChunks.size());
+                mWorkers = workers;
+            }
+            if (workers == 0) {
+                // resumed a download that had already finished
+                finish(null);
+                return;
+            }
+            for (int i = 1; i < workers; i++) {
+                mExecutor.execute(new Runnable() {
+                    public void run() {
+                        work();
+                    }
+                });
+            }
+            // this thread is the first worker
+            work();
+        }
+
+        /*
+         * Ask for the first byte to learn length, type and whether the
+         * origin does ranges at all.
+         */
+        private void probe() throws IOException {
+            HttpURLConnection conn = connect(0, 0);
+            try {
+                int code = conn.getResponseCode();
+                long total = -1;
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    total = VideoCache.getRangeTotal(conn);
+                } else if (code != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Unexpected response " + code + " for " + mUrl);
+                }
+                // a plain 200 means no ranges; leave the length unknown so the
+                // file goes down in one piece
+                if (total > 0) {
+                    mEntry.setLength(total);
+                }
+                if (conn.getContentType() != null) {
+                    mEntry.setMimeType(conn.getContentType());
+                }
+            } finally {
+                conn.disconnect();
+            }
+        }
+
+        private void work() {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            IOException error = null;
+            while (!mCancelled) {
+                long[] chunk;
+                synchronized (this) {
+                    if (mError != null || mChunks.isEmpty()) {
+                        break;
+                    }
+                    chunk = mChunks.removeFirst();
+                }
+                try {
+                    fetch(chunk, buffer);
+                    postProgress();
+                } catch (IOException e) {
+                    error = e;
+                    break;
+                }
+            }
+            workerDone(error);
+        }
+
+        /*
+         * Fetch [chunk[0], chunk[1]), retrying from wherever a failed
+         * attempt got to.
+         */
+        private void fetch(long[] chunk, byte[] buffer) throws IOException {
+            mEntry.setFetching(chunk, true);
+            try {
+                fetchRange(chunk, buffer);
+            } finally {
+                mEntry.setFetching(chunk, false);
+            }
+        }
+
+        private void fetchRange(long[] chunk, byte[] buffer) throws IOException {
+            long position = chunk[0];
+            int attempt = 0;
+            while (position < chunk[1] && !mCancelled) {
+                if (isBeyondReadAhead(position)) {
+                    // far enough ahead of the player, without a connection
+                    mProxy.waitForReadAhead(mUrl, position);
+                    continue;
+                }
+                long end = chunk[1] == Long.MAX_VALUE ? -1 : chunk[1] - 1;
+                long mark = System.nanoTime();
+                HttpURLConnection conn = connect(position, end);
+                try {
+                    int code = conn.getResponseCode();
+                    if (code == HttpURLConnection.HTTP_OK && position > 0) {
+                        // the whole file again, from byte 0
+                        if (!switchToSequential(chunk)) {
+                            return;
+                        }
+                        // this is the sequential download, retrying
+                        position = 0;
+                    } else if (code != HttpURLConnection.HTTP_PARTIAL
+                            && code != HttpURLConnection.HTTP_OK) {
+                        throw new IOException("Unexpected response " + code + " for " + mUrl);
+                    }
+                    InputStream in = conn.getInputStream();
+                    while (position < chunk[1] && !mCancelled && !isBeyondReadAhead(position)) {
+                        int want = (int) Math.min(buffer.length, chunk[1] - position);
+                        int n = in.read(buffer, 0, want);
+                        if (n < 0) {
+                            if (chunk[1] == Long.MAX_VALUE) {
+                                mEntry.setLength(position);
+                                return;
+                            }
+                            throw new IOException("Unexpected end of stream at " + position);
+                        }
+                        if (mProxy != null) {
+                            long now = System.nanoTime();
+                            mProxy.getBandwidthMeter().onTransfer(n, now - mark);
+                            mark = now;
+                        }
+                        mEntry.write(position, buffer, 0, n);
+                        position += n;
+                        attempt = 0;
+                    }
+                } catch (IOException e) {
+                    if (++attempt > MAX_RETRIES) {
+                        throw e;
+                    }
+                    Log.d(TAG, "Retrying " + mUrl + " at " + position + ": " + e.getMessage());
+                } finally {
+                    conn.disconnect();
+                }
+            }
+        }
+
+        private boolean isBeyondReadAhead(long position) {
+            return mProxy != null && mProxy.isBeyondReadAhead(mUrl, position);
+        }
+
+        /*
+         * The origin ignores Range after all. Retrying the ranges would
+         * download the file from the start for every one of them, so drop
+         * them and fetch it once, front to back, on one connection.
+         *
+         * @return Whether chunk is the sequential download itself and should
+         * go on, from byte 0.
+         */
+        private synchronized boolean switchToSequential(long[] chunk) {
+            if (mSequentialChunk == null) {
+                Log.d(TAG, "No range support for " + mUrl + ", downloading sequentially");
+                mChunks.clear();
+                long length = mEntry.getLength();
+                mSequentialChunk = new long[] { 0, length >= 0 ? length : Long.MAX_VALUE };
+                mChunks.add(mSequentialChunk);
+            }
+            return chunk == mSequentialChunk;
+        }
+
+        private HttpURLConnection connect(long start, long end) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(mUrl).openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            conn.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? end : ""));
+            return conn;
+        }
+
+        private void workerDone(IOException error) {
+            synchronized (this) {
+                if (error != null && mError == null) {
+                    mError = error;
+                }
+                if (--mWorkers > 0) {
+                    return;
+                }
+            }
+            finish(mError);
+        }
+
+        private void finish(IOException error) {
+            boolean complete = mEntry.isComplete();
+            // persists the range index, which is what makes resuming work
+            mEntry.close();
+            if (error != null) {
+                Log.w(TAG, "Download of " + mUrl + " failed", error);
+                postError(error);
+            } else if (complete) {
+                postComplete();
+            }
+        }
+
+        private void postProgress() {
+            if (mListener == null) {
+                return;
+            }
+            final long cached = mEntry.getCachedBytes();
+            final long length = mEntry.getLength();
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    if (!mCancelled) {
+                        mListener.onProgress(mUri, cached, length);
+                    }
+                }
+            });
+        }
+
+        private void postComplete() {
+            if (mListener == null) {
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    mListener.onComplete(mUri);
+                }
+            });
+        }
+
+        private void postError(final IOException error) {
+            if (mListener == null) {
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    if (!mCancelled) {
+                        mListener.onError(mUri, error);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.test.videoplay;
+
+import android.view.View;
+
+/**
+ * Where {@link MyVideoView} draws the video. The view hosts one of these as
+ * its only child and talks to the surface through it, so the output can be a
+ * SurfaceView ({@link SurfaceRenderTarget}) or a TextureView
+ * ({@link TextureRenderTarget}) without the playback code caring which.
+ */
+public interface RenderTarget {
+
+    /**
+     * Surface lifecycle, called on the UI thread.
+     */
+    public interface Callback {
+        void onSurfaceCreated(RenderTarget target);
+        void onSurfaceChanged(RenderTarget target, int width, int height);
+        void onSurfaceDestroyed(RenderTarget target);
+    }
+
+    /**
+     * @return The view to add to the hierarchy.
+     */
+    View getView();
+
+    void setCallback(Callback callback);
+
+    /**
+     * @return Whether there currently is a surface to draw on.
+     */
+    boolean hasSurface();
+
+    /**
+     * Fix the size of the surface's buffers, independent of the size of the
+     * view, which then scales them.
+     */
+    void setBufferSize(int width, int height);
+
+    /**
+     * Send the player's output to this target's surface.
+     */
+    void attach(PlaybackEngine engine);
+
+    /**
+     * Stop drawing here; the player keeps running without a display. Returns
+     * once the player no longer draws into the surface, see
+     * {@link PlaybackEngine#clearDisplay()}.
+     */
+    void detach(PlaybackEngine engine);
+}
@@ -0,0 +1,127 @@
+package com.test.videoplay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.net.Uri;
+
+/**
+ * The encodings of one clip at different bitrates, e.g. SD and HD, and the
+ * rules for picking between them by download rate, see
+ * {@link MyVideoView#setRenditions(RenditionLadder)}.
+ * <p>
+ * Starting is conservative, so a poor link starts fast on a low rung.
+ * Moving up takes a clear margin and moving down happens as soon as the
+ * current rung cannot be sustained, so a rate hovering around a bitrate
+ * does not flip back and forth.
+ */
+public class RenditionLadder {
+    // the rate must exceed a rung's bitrate this much to move up to it
+    private static final float UP_MARGIN = 1.5f;
+    // and drop below this much of the current one to move down
+    private static final float DOWN_MARGIN = 1.1f;
+
+    public static class Rendition {
+        public final Uri uri;
+        /** Average bitrate in bits per second. */
+        public final int bitrate;
+
+        Rendition(Uri uri, int bitrate) {
+            this.uri = uri;
+            this.bitrate = bitrate;
+        }
+    }
+
+    // lowest bitrate first
+    private final List<Rendition> mRenditions = new ArrayList<Rendition>();
+
+    /**
+     * Our CDN encodes the rendition in a path segment, e.g.
+     * .../EyKrA3653/SD/EyKrA3653-mobile.mp4. Build a ladder by replacing
+     * that segment.
+     *
+     * @param uri Any one of the renditions.
+     * @param segment Its rendition segment, e.g. "SD".
+     * @param segments All renditions' segments, e.g. {"SD", "HD"}.
+     * @param bitrates Their bitrates in bits per second.
+     */
+    public static RenditionLadder fromPathSegments(Uri uri, String segment, String[] segments,
+            int[] bitrates) {
+        RenditionLadder ladder = new RenditionLadder();
+        String url = uri.toString();
+        String from = "/" + segment + "/";
+        for (int i = 0; i < segments.length; i++) {
+            ladder.add(Uri.parse(url.replace(from, "/" + segments[i] + "/")), bitrates[i]);
+        }
+        return ladder;
+    }
+
+    public void add(Uri uri, int bitrate) {
+        int i = 0;
+        while (i < mRenditions.size() && mRenditions.get(i).bitrate <= bitrate) {
+            i++;
+        }
+        mRenditions.add(i, new Rendition(uri, bitrate));
+    }
+
+    public int size() {
+        return mRenditions.size();
+    }
+
+    /**
+     * @param index 0 is the lowest bitrate.
+     */
+    public Rendition get(int index) {
+        return mRenditions.get(index);
+    }
+
+    /**
+     * @return The index of the rendition at uri, or -1.
+     */
+    public int indexOf(Uri uri) {
+        for (int i = 0; i < mRenditions.size(); i++) {
+            if (mRenditions.get(i).uri.equals(uri)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param bandwidthBps The measured download rate, or -1 if unknown.
+     * @return The rendition to start with: the best one the rate clearly
+     * carries, the lowest if it carries none or is unknown.
+     */
+    public int selectInitial(long bandwidthBps) {
+        return highestBelow(bandwidthBps, UP_MARGIN);
+    }
+
+    /**
+     * @param current The rendition playing.
+     * @param bandwidthBps The measured download rate, or -1 if unknown.
+     * @return The rendition to play from now on, current to stay.
+     */
+    public int select(int current, long bandwidthBps) {
+        if (bandwidthBps < 0) {
+            return current;
+        }
+        int up = highestBelow(bandwidthBps, UP_MARGIN);
+        if (up > current) {
+            return up;
+        }
+        if (bandwidthBps < mRenditions.get(current).bitrate * DOWN_MARGIN) {
+            return Math.min(current, highestBelow(bandwidthBps, DOWN_MARGIN));
+        }
+        return current;
+    }
+
+    private int highestBelow(long bandwidthBps, float margin) {
+        int best = 0;
+        for (int i = 1; i < mRenditions.size(); i++) {
+            if (mRenditions.get(i).bitrate * margin <= bandwidthBps) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
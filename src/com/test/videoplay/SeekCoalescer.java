@@ -0,0 +1,83 @@
+package com.test.videoplay;
+
+/**
+ * Throttles seeks so that at most one is in flight at a time. While a seek is
+ * running, further requests only replace the pending target; when the player
+ * reports the seek complete the latest pending target is issued. Dragging a
+ * SeekBar thus gives a steady stream of frame updates instead of a backlog of
+ * seeks the decoder would mostly throw away.
+ * <p>
+ * Not thread safe; call it from the thread that owns the player.
+ */
+public class SeekCoalescer {
+
+    /**
+     * Performs the actual seek on the player.
+     */
+    public interface Target {
+        void performSeek(long pos, int mode);
+    }
+
+    private final Target mTarget;
+    private boolean mInFlight;
+    private boolean mHasPending;
+    private long mPendingPos;
+    private int mPendingMode;
+    private long mTargetPos = -1;
+
+    public SeekCoalescer(Target target) {
+        mTarget = target;
+    }
+
+    /**
+     * Seek to pos now if nothing is in flight, otherwise remember it as the
+     * next target, replacing any older pending one.
+     */
+    public void seek(long pos, int mode) {
+        mTargetPos = pos;
+        if (mInFlight) {
+            mHasPending = true;
+            mPendingPos = pos;
+            mPendingMode = mode;
+            return;
+        }
+        mInFlight = true;
+        mTarget.performSeek(pos, mode);
+    }
+
+    /**
+     * Call from OnSeekCompleteListener, and also once a completion is
+     * overdue: players occasionally drop one, which would otherwise leave
+     * every later seek pending.
+     */
+    public void onSeekComplete() {
+        if (mHasPending) {
+            mHasPending = false;
+            mTarget.performSeek(mPendingPos, mPendingMode);
+        } else {
+            mInFlight = false;
+            mTargetPos = -1;
+        }
+    }
+
+    /**
+     * Forget everything, e.g. because the player was released.
+     */
+    public void reset() {
+        mInFlight = false;
+        mHasPending = false;
+        mTargetPos = -1;
+    }
+
+    public boolean isSeeking() {
+        return mInFlight;
+    }
+
+    /**
+     * @return The most recently requested position while seeks are
+     * outstanding, or -1.
+     */
+    public long getTargetPosition() {
+        return mTargetPos;
+    }
+}
@@ -0,0 +1,82 @@
+package com.test.videoplay;
+
+import android.content.Context;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+
+/**
+ * Renders into a SurfaceView. The video goes straight to its own layer in
+ * the compositor, which is the cheapest way to show it, but the view cannot
+ * be transformed, animated or read back.
+ */
+public class SurfaceRenderTarget implements RenderTarget {
+    private final SurfaceView mView;
+    private Callback mCallback;
+    private SurfaceHolder mHolder;
+    // the engine showing the video on mHolder
+    private PlaybackEngine mEngine;
+
+    public SurfaceRenderTarget(Context context) {
+        mView = new SurfaceView(context);
+        mView.getHolder().addCallback(mSHCallback);
+        mView.getHolder().setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
+    }
+
+    public View getView() {
+        return mView;
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    public boolean hasSurface() {
+        return mHolder != null;
+    }
+
+    public void setBufferSize(int width, int height) {
+        mView.getHolder().setFixedSize(width, height);
+    }
+
+    public void attach(PlaybackEngine engine) {
+        if (mHolder != null) {
+            engine.setDisplay(mHolder);
+            mEngine = engine;
+        }
+    }
+
+    public void detach(PlaybackEngine engine) {
+        engine.clearDisplay();
+        if (engine == mEngine) {
+            mEngine = null;
+        }
+    }
+
+    private SurfaceHolder.Callback mSHCallback = new SurfaceHolder.Callback() {
+        public void surfaceCreated(SurfaceHolder holder) {
+            mHolder = holder;
+            if (mCallback != null) {
+                mCallback.onSurfaceCreated(SurfaceRenderTarget.this);
+            }
+        }
+
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            if (mCallback != null) {
+                mCallback.onSurfaceChanged(SurfaceRenderTarget.this, width, height);
+            }
+        }
+
+        public void surfaceDestroyed(SurfaceHolder holder) {
+            // after we return from this we can't use the surface any more,
+            // so the engine must be off it before then
+            mHolder = null;
+            if (mEngine != null) {
+                detach(mEngine);
+            }
+            if (mCallback != null) {
+                mCallback.onSurfaceDestroyed(SurfaceRenderTarget.this);
+            }
+        }
+    };
+}
@@ -0,0 +1,186 @@
+package com.test.videoplay;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.SurfaceTexture;
+import android.os.Build;
+import android.view.Surface;
+import android.view.TextureView;
+import android.view.View;
+
+/**
+ * Renders into a TextureView (API 14+). Frames are composited like any other
+ * view, so the video can be scaled, rotated or faded with
+ * {@link #setTransform(Matrix)} and view animations without a relayout, read
+ * back with {@link #getBitmap()}, and every frame that reaches the screen is
+ * reported to the {@link OnFrameListener}.
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+public class TextureRenderTarget implements RenderTarget {
+
+    /**
+     * Called on the UI thread for every frame the TextureView receives.
+     */
+    public interface OnFrameListener {
+        /**
+         * @param frameCount Frames rendered since the surface was created.
+         * @param timestampNs The frame's presentation time, see
+         * {@link SurfaceTexture#getTimestamp()}.
+         */
+        void onFrameRendered(long frameCount, long timestampNs);
+    }
+
+    private final TextureView mView;
+    private Callback mCallback;
+    private OnFrameListener mFrameListener;
+    private SurfaceTexture mSurfaceTexture;
+    private Surface mSurface;
+    // the engine showing the video on mSurface
+    private PlaybackEngine mEngine;
+    private int mBufferWidth;
+    private int mBufferHeight;
+    private long mFrameCount;
+
+    public TextureRenderTarget(Context context) {
+        mView = new TextureView(context);
+        mView.setSurfaceTextureListener(mSurfaceTextureListener);
+    }
+
+    public View getView() {
+        return mView;
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    public void setOnFrameListener(OnFrameListener listener) {
+        mFrameListener = listener;
+    }
+
+    /**
+     * @return Frames rendered since the surface was created; sample it
+     * twice to get the rendered frame rate.
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Scale, move or rotate the video within the view. Only the
+     * composition changes; neither the layout nor the decoder notice.
+     */
+    public void setTransform(Matrix transform) {
+        mView.setTransform(transform);
+    }
+
+    /**
+     * @return A copy of the frame currently shown, or null if there is none.
+     */
+    public Bitmap getBitmap() {
+        return mView.isAvailable() ? mView.getBitmap() : null;
+    }
+
+    public boolean hasSurface() {
+        return mSurface != null;
+    }
+
+    /*
+     * Like SurfaceHolder.setFixedSize(), this reports the new size through
+     * onSurfaceChanged(), so callers see the same sequence for both targets.
+     */
+    public void setBufferSize(int width, int height) {
+        boolean changed = width != mBufferWidth || height != mBufferHeight;
+        mBufferWidth = width;
+        mBufferHeight = height;
+        if (mSurfaceTexture != null) {
+            applyBufferSize();
+            if (changed && mCallback != null) {
+                mCallback.onSurfaceChanged(this, width, height);
+            }
+        }
+    }
+
+    private void applyBufferSize() {
+        if (mBufferWidth > 0 && mBufferHeight > 0
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1) {
+            mSurfaceTexture.setDefaultBufferSize(mBufferWidth, mBufferHeight);
+        }
+    }
+
+    public void attach(PlaybackEngine engine) {
+        if (mSurface != null) {
+            engine.setSurface(mSurface);
+            mEngine = engine;
+        }
+    }
+
+    public void detach(PlaybackEngine engine) {
+        engine.clearDisplay();
+        if (engine == mEngine) {
+            mEngine = null;
+        }
+    }
+
+    private TextureView.SurfaceTextureListener mSurfaceTextureListener =
+        new TextureView.SurfaceTextureListener() {
+        public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+            mSurfaceTexture = surface;
+            mSurface = new Surface(surface);
+            mFrameCount = 0;
+            applyBufferSize();
+            if (mCallback != null) {
+                mCallback.onSurfaceCreated(TextureRenderTarget.this);
+                if (mBufferWidth > 0 && mBufferHeight > 0) {
+                    mCallback.onSurfaceChanged(TextureRenderTarget.this, mBufferWidth, mBufferHeight);
+                } else {
+                    mCallback.onSurfaceChanged(TextureRenderTarget.this, width, height);
+                }
+            }
+        }
+
+        public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+            if (mBufferWidth > 0 && mBufferHeight > 0) {
+                // the view resized, not the buffers; TextureView just reset
+                // them to the view size, so pin them again
+                applyBufferSize();
+            } else if (mCallback != null) {
+                mCallback.onSurfaceChanged(TextureRenderTarget.this, width, height);
+            }
+        }
+
+        public boolean onSurfaceTextureDestroyed(final SurfaceTexture surface) {
+            if (mCallback != null) {
+                mCallback.onSurfaceDestroyed(TextureRenderTarget.this);
+            }
+            final Surface oldSurface = mSurface;
+            mSurface = null;
+            mSurfaceTexture = null;
+            if (mEngine == null) {
+                oldSurface.release();
+                // let the TextureView release it
+                return true;
+            }
+            // the engine may still draw into it; release both once it stopped,
+            // instead of blocking the UI thread until then
+            PlaybackEngine engine = mEngine;
+            mEngine = null;
+            engine.clearDisplay(new Runnable() {
+                public void run() {
+                    oldSurface.release();
+                    surface.release();
+                }
+            });
+            return false;
+        }
+
+        public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+            mFrameCount++;
+            if (mFrameListener != null) {
+                mFrameListener.onFrameRendered(mFrameCount, surface.getTimestamp());
+            }
+        }
+    };
+}
@@ -0,0 +1,449 @@
+package com.test.videoplay;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Extracts preview frames of a video at a fixed interval on a background
+ * thread, for showing above the SeekBar while the user drags it.
+ * <p>
+ * Frames are kept in a memory bounded LRU cache. If a disk directory is given,
+ * every complete group of {@value #SPRITE_COLUMNS}x{@value #SPRITE_ROWS}
+ * frames is also written as one JPEG sprite sheet keyed by the video uri, so
+ * the next time the video is opened the frames are decoded from the sheet
+ * rather than extracted from the video again. The sheets of the videos
+ * opened least recently are deleted once the directory grows beyond its
+ * size limit.
+ */
+public class ThumbnailLoader {
+    private static final String TAG = "ThumbnailLoader";
+
+    private static final int SPRITE_COLUMNS = 5;
+    private static final int SPRITE_ROWS = 5;
+    private static final int TILES_PER_SPRITE = SPRITE_COLUMNS * SPRITE_ROWS;
+    private static final int TILE_WIDTH = 160;
+    private static final long DEFAULT_MAX_DISK_SIZE = 16 * 1024 * 1024;
+
+    private static final int MSG_SET_SOURCE = 1;
+    private static final int MSG_WORK = 2;
+    private static final int MSG_RELEASE = 3;
+
+    private final Context mContext;
+    private final File mDiskDirectory;
+    private final long mMaxDiskSize;
+    private final int mIntervalMs;
+    private final LruCache<Integer, Bitmap> mMemoryCache;
+    private final Handler mWorker;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private OnThumbnailListener mListener;
+    // held while changing mGeneration and the memory cache together, so no
+    // thumbnail of an old source ends up in the cache of a new one
+    private final Object mCacheLock = new Object();
+
+    // written on the main thread, read by the worker
+    private volatile int mGeneration;
+    private volatile int mWantedSlot = -1;
+    private volatile int mSlotCount;
+
+    // owned by the worker thread
+    private MediaMetadataRetriever mRetriever;
+    private File mSpriteDirectory;
+    private boolean[] mSpriteChecked;
+    private int mNextSlot;
+
+    /**
+     * Notified on the main thread whenever a new thumbnail is available.
+     */
+    public interface OnThumbnailListener {
+        void onThumbnailReady(int positionMs);
+    }
+
+    private static class Source {
+        final Uri uri;
+        final Uri dataUri;
+        final int durationMs;
+        final int generation;
+
+        Source(Uri uri, Uri dataUri, int durationMs, int generation) {
+            this.uri = uri;
+            this.dataUri = dataUri;
+            this.durationMs = durationMs;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * @param diskDirectory Where to keep sprite sheets, or null for memory only.
+     * @param intervalMs The distance between two thumbnails.
+     */
+    public ThumbnailLoader(Context context, File diskDirectory, int intervalMs) {
+        this(context, diskDirectory, DEFAULT_MAX_DISK_SIZE, intervalMs);
+    }
+
+    /**
+     * @param maxDiskSize The most bytes of sprite sheets to keep on disk.
+     */
+    public ThumbnailLoader(Context context, File diskDirectory, long maxDiskSize, int intervalMs) {
+        mContext = context.getApplicationContext();
+        mDiskDirectory = diskDirectory;
+        mMaxDiskSize = maxDiskSize;
+        mIntervalMs = intervalMs;
+        int maxKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / 16);
+        mMemoryCache = new LruCache<Integer, Bitmap>(maxKb) {
+            @Override
+            protected int sizeOf(Integer key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight() / 1024;
+            }
+        };
+        HandlerThread thread = new HandlerThread(TAG, android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWorker = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                case MSG_SET_SOURCE:
+                    openSource((Source) msg.obj);
+                    break;
+                case MSG_WORK:
+                    if (msg.arg1 == mGeneration) {
+                        work(msg.arg1);
+                    }
+                    break;
+                case MSG_RELEASE:
+                    closeSource();
+                    getLooper().quit();
+                    break;
+                }
+            }
+        };
+    }
+
+    public void setOnThumbnailListener(OnThumbnailListener l) {
+        mListener = l;
+    }
+
+    /**
+     * Start extracting thumbnails for a video, dropping those of the previous
+     * one.
+     *
+     * @param uri The uri the sprite sheets are keyed by.
+     * @param dataUri Where to read the video from, e.g. through the cache proxy.
+     * @param durationMs Duration of the video.
+     */
+    public void setSource(Uri uri, Uri dataUri, int durationMs) {
+        int generation;
+        synchronized (mCacheLock) {
+            generation = ++mGeneration;
+            mMemoryCache.evictAll();
+        }
+        mWantedSlot = -1;
+        mSlotCount = durationMs > 0 ? (durationMs + mIntervalMs - 1) / mIntervalMs : 0;
+        mWorker.removeMessages(MSG_WORK);
+        if (uri != null && mSlotCount > 0) {
+            mWorker.obtainMessage(MSG_SET_SOURCE, new Source(uri, dataUri, durationMs, generation))
+                    .sendToTarget();
+        }
+    }
+
+    /**
+     * Stop extracting, e.g. because playback stopped.
+     */
+    public void clearSource() {
+        setSource(null, null, 0);
+    }
+
+    /**
+     * @return The thumbnail closest to positionMs if it is cached, otherwise
+     * null, in which case it is extracted with priority and the listener is
+     * called once it is ready.
+     */
+    public Bitmap getThumbnail(int positionMs) {
+        if (mSlotCount == 0) {
+            return null;
+        }
+        int slot = Math.max(0, Math.min(mSlotCount - 1, (positionMs + mIntervalMs / 2) / mIntervalMs));
+        Bitmap bitmap = mMemoryCache.get(slot);
+        if (bitmap == null && mWantedSlot != slot) {
+            mWantedSlot = slot;
+            // jump the queue of the sequential prefetch
+            mWorker.removeMessages(MSG_WORK);
+            mWorker.obtainMessage(MSG_WORK, mGeneration, 0).sendToTarget();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stop the worker and drop all cached thumbnails. The loader cannot be
+     * used afterwards.
+     */
+    public void release() {
+        synchronized (mCacheLock) {
+            ++mGeneration;
+            mMemoryCache.evictAll();
+        }
+        mWorker.removeCallbacksAndMessages(null);
+        mWorker.sendEmptyMessage(MSG_RELEASE);
+    }
+
+    private void openSource(Source source) {
+        closeSource();
+        if (source.generation != mGeneration) {
+            return;
+        }
+        try {
+            mRetriever = new MediaMetadataRetriever();
+            String scheme = source.dataUri.getScheme();
+            if ("http".equals(scheme) || "https".equals(scheme)) {
+                mRetriever.setDataSource(source.dataUri.toString(), new HashMap<String, String>());
+            } else {
+                LocalMedia.setDataSource(mRetriever, mContext, source.dataUri);
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to open " + source.uri, ex);
+            closeSource();
+            return;
+        } catch (RuntimeException ex) {
+            Log.w(TAG, "Unable to open " + source.uri, ex);
+            closeSource();
+            return;
+        }
+        if (mDiskDirectory != null) {
+            mSpriteDirectory = new File(mDiskDirectory, VideoCache.keyFor(source.uri.toString()));
+            if (!mSpriteDirectory.exists() && !mSpriteDirectory.mkdirs()) {
+                mSpriteDirectory = null;
+            } else {
+                // most recently used, for trimDisk()
+                mSpriteDirectory.setLastModified(System.currentTimeMillis());
+            }
+        }
+        mSpriteChecked = new boolean[(mSlotCount + TILES_PER_SPRITE - 1) / TILES_PER_SPRITE];
+        mNextSlot = 0;
+        mWorker.obtainMessage(MSG_WORK, source.generation, 0).sendToTarget();
+    }
+
+    private void closeSource() {
+        if (mRetriever != null) {
+            mRetriever.release();
+            mRetriever = null;
+        }
+        mSpriteDirectory = null;
+        mSpriteChecked = null;
+    }
+
+    /*
+     * Produce one thumbnail, the wanted one if it is missing, otherwise the
+     * next missing one in order, and schedule the next step.
+     */
+    private void work(int generation) {
+        if (mRetriever == null) {
+            return;
+        }
+        int slot = mWantedSlot;
+        if (slot < 0 || slot >= mSlotCount || mMemoryCache.get(slot) != null) {
+            slot = -1;
+            while (mNextSlot < mSlotCount) {
+                if (mMemoryCache.get(mNextSlot) == null) {
+                    slot = mNextSlot;
+                    break;
+                }
+                mNextSlot++;
+            }
+        }
+        if (slot < 0) {
+            return; // everything is in memory
+        }
+        if (!loadSprite(slot / TILES_PER_SPRITE)) {
+            Bitmap frame = null;
+            try {
+                frame = mRetriever.getFrameAtTime(slot * (long) mIntervalMs * 1000,
+                        MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "Unable to extract frame at " + slot * mIntervalMs, ex);
+            }
+            if (frame == null) {
+                // don't retry forever, move on
+                mNextSlot = Math.max(mNextSlot, slot + 1);
+                if (slot == mWantedSlot) {
+                    mWantedSlot = -1;
+                }
+            } else {
+                int height = frame.getHeight() * TILE_WIDTH / frame.getWidth();
+                Bitmap tile = Bitmap.createScaledBitmap(frame, TILE_WIDTH, height, true);
+                if (tile != frame) {
+                    frame.recycle();
+                }
+                publish(slot, tile, generation);
+                writeSpriteIfComplete(slot / TILES_PER_SPRITE);
+            }
+        }
+        // a priority request may have queued a step already, keep one chain
+        mWorker.removeMessages(MSG_WORK);
+        mWorker.obtainMessage(MSG_WORK, generation, 0).sendToTarget();
+    }
+
+    private void publish(int slot, Bitmap tile, final int generation) {
+        synchronized (mCacheLock) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mMemoryCache.put(slot, tile);
+        }
+        final int positionMs = slot * mIntervalMs;
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                if (generation == mGeneration && mListener != null) {
+                    mListener.onThumbnailReady(positionMs);
+                }
+            }
+        });
+    }
+
+    private int tilesInSprite(int sprite) {
+        return Math.min(TILES_PER_SPRITE, mSlotCount - sprite * TILES_PER_SPRITE);
+    }
+
+    private File spriteFile(int sprite) {
+        return new File(mSpriteDirectory, mIntervalMs + "_" + sprite + ".jpg");
+    }
+
+    /*
+     * Fill the memory cache from the sprite sheet on disk, if there is one.
+     */
+    private boolean loadSprite(int sprite) {
+        if (mSpriteDirectory == null || mSpriteChecked[sprite]) {
+            return false;
+        }
+        mSpriteChecked[sprite] = true;
+        File file = spriteFile(sprite);
+        if (!file.exists()) {
+            return false;
+        }
+        Bitmap sheet = BitmapFactory.decodeFile(file.getPath());
+        if (sheet == null) {
+            file.delete();
+            return false;
+        }
+        int tiles = tilesInSprite(sprite);
+        int rows = (tiles + SPRITE_COLUMNS - 1) / SPRITE_COLUMNS;
+        int tileHeight = sheet.getHeight() / rows;
+        int generation = mGeneration;
+        for (int i = 0; i < tiles; i++) {
+            Bitmap tile = Bitmap.createBitmap(sheet, (i % SPRITE_COLUMNS) * TILE_WIDTH,
+                    (i / SPRITE_COLUMNS) * tileHeight, TILE_WIDTH, tileHeight);
+            publish(sprite * TILES_PER_SPRITE + i, tile, generation);
+        }
+        sheet.recycle();
+        return true;
+    }
+
+    /*
+     * Once every tile of a sprite is in memory, write the sheet to disk.
+     */
+    private void writeSpriteIfComplete(int sprite) {
+        if (mSpriteDirectory == null || spriteFile(sprite).exists()) {
+            return;
+        }
+        int tiles = tilesInSprite(sprite);
+        Bitmap[] bitmaps = new Bitmap[tiles];
+        for (int i = 0; i < tiles; i++) {
+            bitmaps[i] = mMemoryCache.get(sprite * TILES_PER_SPRITE + i);
+            if (bitmaps[i] == null) {
+                return;
+            }
+        }
+        int tileHeight = bitmaps[0].getHeight();
+        int rows = (tiles + SPRITE_COLUMNS - 1) / SPRITE_COLUMNS;
+        Bitmap sheet = Bitmap.createBitmap(TILE_WIDTH * SPRITE_COLUMNS, tileHeight * rows,
+                Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(sheet);
+        for (int i = 0; i < tiles; i++) {
+            canvas.drawBitmap(bitmaps[i], (i % SPRITE_COLUMNS) * TILE_WIDTH,
+                    (i / SPRITE_COLUMNS) * tileHeight, null);
+        }
+        File file = spriteFile(sprite);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            sheet.compress(Bitmap.CompressFormat.JPEG, 80, out);
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to write " + file, ex);
+            file.delete();
+        } finally {
+            VideoCache.closeQuietly(out);
+            sheet.recycle();
+        }
+        trimDisk();
+    }
+
+    /*
+     * Delete the sprite directories of the videos opened least recently
+     * until the sheets fit in mMaxDiskSize. The current one stays.
+     */
+    private void trimDisk() {
+        File[] dirs = mDiskDirectory.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        long total = 0;
+        for (File dir : dirs) {
+            total += sizeOf(dir);
+        }
+        if (total <= mMaxDiskSize) {
+            return;
+        }
+        // oldest first
+        Arrays.sort(dirs, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < dirs.length && total > mMaxDiskSize; i++) {
+            if (dirs[i].equals(mSpriteDirectory)) {
+                continue;
+            }
+            total -= sizeOf(dirs[i]);
+            delete(dirs[i]);
+        }
+    }
+
+    private static long sizeOf(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : children) {
+            size += child.length();
+        }
+        return size;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,685 @@
+package com.test.videoplay;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A size bounded disk cache for progressively downloaded media. Every entry is
+ * a sparse data file plus a small index recording which byte ranges of the
+ * remote resource are already on disk, so a seek into the middle of a clip
+ * only has to fetch the bytes that are missing.
+ * <p>
+ * When the total number of cached bytes exceeds the configured maximum the
+ * least recently used entries that nobody holds open are evicted.
+ * <p>
+ * Given a key, data files are encrypted at rest with AES-CTR under a random
+ * per-entry nonce. Counter mode keeps them random access: a read decrypts
+ * only the bytes it touches, see {@link AesCtrCipher}. The key comes from
+ * the caller, {@link CacheKeyStore} creates and keeps one.
+ */
+public class VideoCache {
+    private static final String TAG = "VideoCache";
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_MAGIC = 0x56434931; // "VCI1"
+    // "VCI3", followed by the key check and the nonce
+    private static final int INDEX_MAGIC_ENCRYPTED = 0x56434933;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    // access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mSize;
+    private final SecretKey mSecretKey;
+    // identifies the key without giving it away, see keyCheck()
+    private final long mKeyCheck;
+    private final SecureRandom mRandom;
+    // one cipher per thread, so concurrent proxy connections don't share state
+    private final ThreadLocal<AesCtrCipher> mCiphers = new ThreadLocal<AesCtrCipher>();
+    // the last array each thread read or wrote through, wrapped; callers
+    // like the proxy reuse theirs, so this wraps once per connection
+    private final ThreadLocal<ByteBuffer> mWrappers = new ThreadLocal<ByteBuffer>();
+
+    /**
+     * @param directory The directory the cache lives in, created if missing.
+     * @param maxSize The maximum number of cached bytes.
+     */
+    public VideoCache(File directory, long maxSize) {
+        this(directory, maxSize, null);
+    }
+
+    /**
+     * @param key An AES key to encrypt the cached data with, or null to store
+     * it as is. The cache does not keep the key, the caller supplies the
+     * same one every time, see {@link CacheKeyStore}. Entries written with
+     * another setting or another key are dropped.
+     */
+    public VideoCache(File directory, long maxSize, SecretKey key) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mSecretKey = key;
+        mKeyCheck = key != null ? keyCheck(key) : 0;
+        mRandom = key != null ? new SecureRandom() : null;
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create cache directory " + mDirectory);
+        }
+        loadEntries();
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public boolean isEncrypted() {
+        return mSecretKey != null;
+    }
+
+    /**
+     * @return A new cipher for reading this cache's data files, see
+     * {@link Entry#getNonce()}.
+     */
+    public AesCtrCipher newCipher() throws GeneralSecurityException {
+        return new AesCtrCipher(mSecretKey);
+    }
+
+    /*
+     * The first keystream bytes under nonce 0, i.e. the start of the
+     * encrypted zero block: the usual key check value.
+     */
+    private static long keyCheck(SecretKey key) {
+        byte[] block = new byte[8];
+        try {
+            new AesCtrCipher(key).apply(0, 0, block, 0, block.length);
+        } catch (GeneralSecurityException e) {
+            // cipher() will fail the same way on first use
+            return 0;
+        }
+        long check = 0;
+        for (byte b : block) {
+            check = (check << 8) | (b & 0xff);
+        }
+        return check;
+    }
+
+    private AesCtrCipher cipher() throws IOException {
+        AesCtrCipher cipher = mCiphers.get();
+        if (cipher == null) {
+            try {
+                cipher = newCipher();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to set up cache encryption: " + e);
+            }
+            mCiphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    private ByteBuffer wrap(byte[] buffer, int offset, int count) {
+        ByteBuffer wrapper = mWrappers.get();
+        if (wrapper == null || wrapper.array() != buffer) {
+            wrapper = ByteBuffer.wrap(buffer);
+            mWrappers.set(wrapper);
+        }
+        wrapper.clear();
+        wrapper.position(offset);
+        wrapper.limit(offset + count);
+        return wrapper;
+    }
+
+    /**
+     * @return The number of bytes currently held by the cache.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Open the entry for the given url, creating it if necessary. Every
+     * successful call must be balanced by {@link Entry#close()}.
+     */
+    public synchronized Entry open(String url) throws IOException {
+        String key = keyFor(url);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            mEntries.put(key, entry);
+        }
+        entry.acquire();
+        return entry;
+    }
+
+    /**
+     * @return Whether the whole resource behind the url is on disk.
+     */
+    public synchronized boolean isCached(String url) {
+        Entry entry = mEntries.get(keyFor(url));
+        return entry != null && entry.isComplete();
+    }
+
+    /**
+     * @return The length of the resource behind the url, -1 if not known yet.
+     */
+    public synchronized long getLength(String url) {
+        Entry entry = mEntries.get(keyFor(url));
+        return entry != null ? entry.getLength() : -1;
+    }
+
+    /**
+     * @return The number of contiguous bytes of the url on disk starting at
+     * position.
+     */
+    public synchronized long getCachedLength(String url, long position) {
+        Entry entry = mEntries.get(keyFor(url));
+        return entry != null ? entry.getCachedLength(position) : 0;
+    }
+
+    /**
+     * Drop every entry that is not in use.
+     */
+    public synchronized void clear() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.mRefCount == 0) {
+                it.remove();
+                mSize -= entry.getCachedBytes();
+                entry.delete();
+            }
+        }
+    }
+
+    private synchronized void onBytesAdded(long count) {
+        mSize += count;
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.mRefCount > 0) {
+                continue;
+            }
+            it.remove();
+            mSize -= entry.getCachedBytes();
+            entry.delete();
+        }
+    }
+
+    private void loadEntries() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // oldest first, so the access ordered map ends up in LRU order
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(INDEX_SUFFIX)) {
+                continue;
+            }
+            String key = name.substring(0, name.length() - INDEX_SUFFIX.length());
+            Entry entry = new Entry(key);
+            if (entry.readIndex()) {
+                mEntries.put(key, entry);
+                mSize += entry.getCachedBytes();
+            } else {
+                entry.delete();
+            }
+        }
+        trimToSize();
+    }
+
+    static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * One cached resource. Reads and writes are positional, so several
+     * proxy connections may share an entry.
+     */
+    public class Entry {
+        private final String mKey;
+        private final File mDataFile;
+        private final File mIndexFile;
+        // sorted, non overlapping [start, end) pairs of bytes present on disk
+        private final ArrayList<long[]> mRanges = new ArrayList<long[]>();
+        private RandomAccessFile mFile;
+        private FileChannel mChannel;
+        private long mLength = -1;
+        private String mMimeType;
+        private int mRefCount;
+        private boolean mDirty;
+        private long mNonce;
+        // [start, end) ranges RangeDownloader connections are fetching
+        private final ArrayList<long[]> mFetching = new ArrayList<long[]>();
+
+        Entry(String key) {
+            mKey = key;
+            mDataFile = new File(mDirectory, key + DATA_SUFFIX);
+            mIndexFile = new File(mDirectory, key + INDEX_SUFFIX);
+            if (mRandom != null) {
+                mNonce = mRandom.nextLong();
+            }
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return The data file; encrypted if the cache is, see
+         * {@link #getNonce()}.
+         */
+        public File getDataFile() {
+            return mDataFile;
+        }
+
+        /**
+         * @return The nonce the data file is encrypted with.
+         */
+        public long getNonce() {
+            return mNonce;
+        }
+
+        /**
+         * @return The total length of the resource, or -1 if not known yet.
+         */
+        public synchronized long getLength() {
+            return mLength;
+        }
+
+        public synchronized void setLength(long length) {
+            if (mLength != length) {
+                mLength = length;
+                mDirty = true;
+            }
+        }
+
+        public synchronized String getMimeType() {
+            return mMimeType;
+        }
+
+        public synchronized void setMimeType(String mimeType) {
+            mMimeType = mimeType;
+            mDirty = true;
+        }
+
+        public synchronized boolean isComplete() {
+            return mLength > 0 && getCachedLength(0) >= mLength;
+        }
+
+        /**
+         * @return The number of contiguous bytes on disk starting at position.
+         */
+        public synchronized long getCachedLength(long position) {
+            for (long[] range : mRanges) {
+                if (position < range[0]) {
+                    return 0;
+                }
+                if (position < range[1]) {
+                    return range[1] - position;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return The [start, end) byte ranges not on disk yet, in order.
+         * The length must be known.
+         */
+        public synchronized List<long[]> getMissingRanges() {
+            List<long[]> missing = new ArrayList<long[]>();
+            long position = 0;
+            for (long[] range : mRanges) {
+                if (range[0] > position) {
+                    missing.add(new long[] { position, range[0] });
+                }
+                position = Math.max(position, range[1]);
+            }
+            if (position < mLength) {
+                missing.add(new long[] { position, mLength });
+            }
+            return missing;
+        }
+
+        /**
+         * Reserve the full length on disk up front, so parallel positional
+         * writes don't keep growing the file.
+         */
+        public void allocate(long length) throws IOException {
+            channel();
+            synchronized (this) {
+                if (mFile.length() < length) {
+                    mFile.setLength(length);
+                }
+            }
+        }
+
+        /**
+         * A connection starts or stops fetching range, which it does from
+         * its start onwards.
+         */
+        synchronized void setFetching(long[] range, boolean fetching) {
+            if (fetching) {
+                mFetching.add(range);
+            } else {
+                mFetching.remove(range);
+                notifyAll();
+            }
+        }
+
+        /**
+         * Wait until position is on disk, as long as a RangeDownloader
+         * connection is about to deliver it: position lies in a range being
+         * fetched, at most window bytes past what has arrived of it.
+         *
+         * @return Whether position is on disk now.
+         */
+        public synchronized boolean waitForData(long position, long window, long timeoutMs)
+                throws InterruptedException {
+            long deadline = SystemClock.uptimeMillis() + timeoutMs;
+            while (getCachedLength(position) == 0 && isArriving(position, window)) {
+                long left = deadline - SystemClock.uptimeMillis();
+                if (left <= 0) {
+                    break;
+                }
+                wait(left);
+            }
+            return getCachedLength(position) > 0;
+        }
+
+        private boolean isArriving(long position, long window) {
+            for (long[] range : mFetching) {
+                if (position >= range[0] && position < range[1]) {
+                    // ranges are fetched in order, so what arrived is contiguous
+                    long next = range[0] + getCachedLength(range[0]);
+                    return position - next < window;
+                }
+            }
+            return false;
+        }
+
+        public synchronized long getCachedBytes() {
+            long total = 0;
+            for (long[] range : mRanges) {
+                total += range[1] - range[0];
+            }
+            return total;
+        }
+
+        /**
+         * Read cached bytes. The caller must make sure the range is present,
+         * see {@link #getCachedLength(long)}.
+         */
+        public int read(long position, byte[] buffer, int offset, int count) throws IOException {
+            return read(position, wrap(buffer, offset, count));
+        }
+
+        public int read(long position, ByteBuffer dst) throws IOException {
+            FileChannel channel = channel();
+            int start = dst.position();
+            int total = 0;
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, position + total);
+                if (n < 0) {
+                    break;
+                }
+                total += n;
+            }
+            if (mSecretKey != null && total > 0) {
+                cipher().apply(mNonce, position, dst, start, total);
+            }
+            return total;
+        }
+
+        public void write(long position, byte[] buffer, int offset, int count) throws IOException {
+            write(position, wrap(buffer, offset, count));
+        }
+
+        public void write(long position, ByteBuffer src) throws IOException {
+            int count = src.remaining();
+            FileChannel channel = channel();
+            long written = 0;
+            if (mSecretKey != null) {
+                AesCtrCipher cipher = cipher();
+                while (src.hasRemaining()) {
+                    ByteBuffer chunk = cipher.encryptChunk(mNonce, position + written, src);
+                    while (chunk.hasRemaining()) {
+                        written += channel.write(chunk, position + written);
+                    }
+                }
+            } else {
+                while (src.hasRemaining()) {
+                    written += channel.write(src, position + written);
+                }
+            }
+            long added;
+            synchronized (this) {
+                added = addRange(position, position + count);
+                if (added > 0) {
+                    mDirty = true;
+                    notifyAll();
+                }
+            }
+            if (added > 0) {
+                onBytesAdded(added);
+            }
+        }
+
+        /**
+         * Persist the index and give up this reference to the entry.
+         */
+        public void close() {
+            synchronized (VideoCache.this) {
+                synchronized (this) {
+                    if (mRefCount == 0) {
+                        return;
+                    }
+                    if (--mRefCount == 0) {
+                        writeIndex();
+                        closeFile();
+                    }
+                }
+                trimToSize();
+            }
+        }
+
+        void acquire() throws IOException {
+            synchronized (this) {
+                mRefCount++;
+            }
+            mIndexFile.setLastModified(System.currentTimeMillis());
+        }
+
+        private synchronized FileChannel channel() throws IOException {
+            if (mChannel == null) {
+                mFile = new RandomAccessFile(mDataFile, "rw");
+                mChannel = mFile.getChannel();
+            }
+            return mChannel;
+        }
+
+        private long addRange(long start, long end) {
+            long covered = 0;
+            int i = 0;
+            // find the first range that ends at or after start
+            while (i < mRanges.size() && mRanges.get(i)[1] < start) {
+                i++;
+            }
+            long newStart = start;
+            long newEnd = end;
+            while (i < mRanges.size() && mRanges.get(i)[0] <= end) {
+                long[] range = mRanges.remove(i);
+                covered += Math.min(range[1], end) - Math.max(range[0], start);
+                newStart = Math.min(newStart, range[0]);
+                newEnd = Math.max(newEnd, range[1]);
+            }
+            mRanges.add(i, new long[] { newStart, newEnd });
+            return (end - start) - Math.max(covered, 0);
+        }
+
+        private synchronized boolean readIndex() {
+            if (!mIndexFile.exists() || !mDataFile.exists()) {
+                return false;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(mIndexFile));
+                int magic = in.readInt();
+                if (magic != (mSecretKey != null ? INDEX_MAGIC_ENCRYPTED : INDEX_MAGIC)) {
+                    return false;
+                }
+                if (mSecretKey != null) {
+                    if (in.readLong() != mKeyCheck) {
+                        // written under a key we no longer have
+                        return false;
+                    }
+                    mNonce = in.readLong();
+                }
+                mLength = in.readLong();
+                String mime = in.readUTF();
+                mMimeType = mime.length() > 0 ? mime : null;
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    mRanges.add(new long[] { in.readLong(), in.readLong() });
+                }
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read cache index " + mIndexFile, e);
+                return false;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        private void writeIndex() {
+            if (!mDirty) {
+                return;
+            }
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new FileOutputStream(mIndexFile));
+                if (mSecretKey != null) {
+                    out.writeInt(INDEX_MAGIC_ENCRYPTED);
+                    out.writeLong(mKeyCheck);
+                    out.writeLong(mNonce);
+                } else {
+                    out.writeInt(INDEX_MAGIC);
+                }
+                out.writeLong(mLength);
+                out.writeUTF(mMimeType != null ? mMimeType : "");
+                out.writeInt(mRanges.size());
+                for (long[] range : mRanges) {
+                    out.writeLong(range[0]);
+                    out.writeLong(range[1]);
+                }
+                mDirty = false;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write cache index " + mIndexFile, e);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+
+        private void closeFile() {
+            closeQuietly(mFile);
+            mFile = null;
+            mChannel = null;
+        }
+
+        private synchronized void delete() {
+            closeFile();
+            mRanges.clear();
+            mDataFile.delete();
+            mIndexFile.delete();
+        }
+    }
+
+    /**
+     * @return The Content-Length of a response, -1 if missing. Unlike
+     * getContentLength() this goes past 2 GB without needing API 24 for
+     * getContentLengthLong().
+     */
+    static long getContentLength(HttpURLConnection conn) {
+        return parseLength(conn.getHeaderField("Content-Length"));
+    }
+
+    /**
+     * @return The total length from the Content-Range of a 206 response,
+     * e.g. "bytes 0-0/1234", -1 if missing or "*".
+     */
+    static long getRangeTotal(HttpURLConnection conn) {
+        String range = conn.getHeaderField("Content-Range");
+        int slash = range != null ? range.lastIndexOf('/') : -1;
+        return slash >= 0 ? parseLength(range.substring(slash + 1)) : -1;
+    }
+
+    private static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
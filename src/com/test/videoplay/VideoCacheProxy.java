@@ -0,0 +1,543 @@
+package com.test.videoplay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * An in-process HTTP server on the loopback interface that sits between
+ * MediaPlayer and the network. Requests are answered from a
+ * {@link VideoCache} where the bytes are already on disk; missing ranges are
+ * fetched from the origin and written to the cache while they are streamed to
+ * the player, so replays and backward seeks never hit the network twice.
+ * <p>
+ * Use {@link #getProxyUri(Uri)} to turn a remote uri into one served by this
+ * proxy. Only http and https uris are proxied, everything else is returned
+ * untouched.
+ */
+public class VideoCacheProxy {
+    private static final String TAG = "VideoCacheProxy";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 15000;
+    // how long to wait for a RangeDownloader before fetching a byte ourselves
+    private static final int DOWNLOAD_WAIT = 3000;
+    // and how close its connection must be to the byte for that; anything
+    // further away is quicker to fetch ourselves
+    private static final int DOWNLOAD_WINDOW = 256 * 1024;
+    // how often a paused fetch looks at its read-ahead limit again
+    private static final int READ_AHEAD_WAIT = 1000;
+    // marks the player's requests, see getPlayerUri()
+    private static final String PLAYER_PATH = "/player/";
+
+    private final VideoCache mCache;
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+    private ExecutorService mExecutor;
+    private volatile boolean mRunning;
+    private final BandwidthMeter mBandwidthMeter = new BandwidthMeter();
+    // url -> byte offset not to fetch past, see setReadAheadLimit()
+    private final Map<String, Long> mReadAheadLimits = new HashMap<String, Long>();
+
+    public VideoCacheProxy(VideoCache cache) {
+        mCache = cache;
+    }
+
+    public VideoCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * @return The download rate measured on the reads from the origin.
+     */
+    public BandwidthMeter getBandwidthMeter() {
+        return mBandwidthMeter;
+    }
+
+    /**
+     * Stop fetching uri from the origin at limit until the limit moves on.
+     * The player is still served what is on disk; past that its request
+     * waits, with the origin connection closed so it costs neither data nor
+     * a socket. Only requests through {@link #getPlayerUri(Uri)} and a
+     * {@link RangeDownloader} on this proxy are held, other readers of the
+     * same uri, such as thumbnail extraction, are not.
+     *
+     * @param limit A byte offset, or -1 to fetch freely again.
+     */
+    public void setReadAheadLimit(Uri uri, long limit) {
+        synchronized (mReadAheadLimits) {
+            if (limit < 0) {
+                mReadAheadLimits.remove(uri.toString());
+            } else {
+                mReadAheadLimits.put(uri.toString(), limit);
+            }
+            mReadAheadLimits.notifyAll();
+        }
+    }
+
+    /**
+     * Bind to an ephemeral port on the loopback interface and start serving.
+     */
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "VideoCacheProxy #" + mCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mRunning = true;
+        mAcceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "VideoCacheProxy");
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+        mExecutor.shutdownNow();
+        mServerSocket = null;
+        mAcceptThread = null;
+        mExecutor = null;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return A uri that plays the same content through this proxy, or the
+     * given uri if it cannot be proxied.
+     */
+    public Uri getProxyUri(Uri uri) {
+        return getProxyUri(uri, "/");
+    }
+
+    /**
+     * @return Like {@link #getProxyUri(Uri)}, for the player: reads through
+     * it are held to the read-ahead limit, see
+     * {@link #setReadAheadLimit(Uri, long)}.
+     */
+    public Uri getPlayerUri(Uri uri) {
+        return getProxyUri(uri, PLAYER_PATH);
+    }
+
+    private Uri getProxyUri(Uri uri, String path) {
+        if (uri == null || !mRunning || !isProxyable(uri)) {
+            return uri;
+        }
+        return Uri.parse("http://127.0.0.1:" + mServerSocket.getLocalPort() + path
+                + Uri.encode(uri.toString()));
+    }
+
+    static boolean isProxyable(Uri uri) {
+        String scheme = uri.getScheme();
+        return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mExecutor.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (mRunning) {
+                    Log.w(TAG, "accept failed", e);
+                }
+            } catch (RuntimeException e) {
+                // executor was shut down underneath us
+                break;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        VideoCache.Entry entry = null;
+        Upstream upstream = null;
+        try {
+            Request request = Request.read(new BufferedInputStream(socket.getInputStream()));
+            if (request == null) {
+                return;
+            }
+            if (!request.supported) {
+                // only http(s) goes through here, nothing local and no other
+                // schemes for whoever else finds the port
+                OutputStream out = socket.getOutputStream();
+                out.write("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n"
+                        .getBytes("US-ASCII"));
+                out.flush();
+                return;
+            }
+            entry = mCache.open(request.url);
+            if (entry.getLength() < 0) {
+                // learn the length and type from the origin before answering
+                upstream = Upstream.open(request, entry, request.rangeStart);
+            }
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            long length = entry.getLength();
+            long start = request.rangeStart;
+            long end;
+            if (length < 0) {
+                // unknown length, stream until the origin closes
+                end = Long.MAX_VALUE;
+            } else {
+                end = request.rangeEnd >= 0 && request.rangeEnd < length
+                        ? request.rangeEnd : length - 1;
+            }
+            if (length > 0 && start > end) {
+                writeHeaders(out, "416 Range Not Satisfiable", entry, -1, -1, -1);
+                out.flush();
+                return;
+            }
+            if (request.hasRange) {
+                writeHeaders(out, "206 Partial Content", entry, start, end, length);
+            } else {
+                writeHeaders(out, "200 OK", entry, start, end, length);
+            }
+            if (!request.headOnly) {
+                upstream = transfer(request, entry, upstream, out, start, end);
+            }
+            out.flush();
+        } catch (SocketException e) {
+            // the player closed the connection, usually because it seeked
+        } catch (IOException e) {
+            Log.w(TAG, "Proxy request failed", e);
+        } catch (RuntimeException e) {
+            // a bad url or header must not take the pool thread with it
+            Log.w(TAG, "Proxy request failed", e);
+        } finally {
+            if (upstream != null) {
+                upstream.close();
+            }
+            if (entry != null) {
+                entry.close();
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Stream [start, end] to the player, preferring the disk and falling back
+     * to the origin for anything that is not cached yet.
+     */
+    private Upstream transfer(Request request, VideoCache.Entry entry, Upstream upstream,
+            OutputStream out, long start, long end) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = start;
+        // the download rate counts the wall clock since the last bytes went
+        // out, including connecting; only waiting for the player is left out
+        long mark = System.nanoTime();
+        while (position <= end && mRunning) {
+            long remaining = end - position;
+            int want = remaining < buffer.length ? (int) remaining + 1 : buffer.length;
+            int n;
+            if (request.player && isBeyondReadAhead(request.url, position)
+                    && entry.getCachedLength(position) == 0) {
+                // far enough ahead of the player
+                if (upstream != null) {
+                    upstream.close();
+                    upstream = null;
+                }
+                waitForReadAhead(request.url, position);
+                mark = System.nanoTime();
+                continue;
+            }
+            if (upstream != null && upstream.position == position) {
+                n = upstream.read(buffer, want);
+                if (n < 0) {
+                    if (entry.getLength() < 0) {
+                        // the origin didn't say, now we know
+                        entry.setLength(position);
+                        break;
+                    }
+                    throw new IOException("Unexpected end of stream at " + position);
+                }
+                entry.write(position, buffer, 0, n);
+                mBandwidthMeter.onTransfer(n, System.nanoTime() - mark);
+            } else {
+                long cached = entry.getCachedLength(position);
+                if (cached == 0 && upstream == null && waitForDownload(entry, position)) {
+                    // a RangeDownloader just delivered it
+                    cached = entry.getCachedLength(position);
+                }
+                mark = System.nanoTime();
+                if (cached > 0) {
+                    n = entry.read(position, buffer, 0, (int) Math.min(want, cached));
+                } else {
+                    if (upstream != null) {
+                        upstream.close();
+                    }
+                    upstream = Upstream.open(request, entry, position);
+                    continue;
+                }
+            }
+            out.write(buffer, 0, n);
+            mark = System.nanoTime();
+            if (position == start) {
+                PlaybackTrace.markFirst(PlaybackTrace.FIRST_BYTE);
+            }
+            position += n;
+        }
+        return upstream;
+    }
+
+    /**
+     * @return Whether position is at or past the read-ahead limit of url.
+     */
+    boolean isBeyondReadAhead(String url, long position) {
+        synchronized (mReadAheadLimits) {
+            Long limit = mReadAheadLimits.get(url);
+            return mRunning && limit != null && position >= limit;
+        }
+    }
+
+    /**
+     * Wait a while for the read-ahead limit of url to move past position;
+     * callers check {@link #isBeyondReadAhead(String, long)} again, and
+     * whether they still want the bytes at all.
+     */
+    void waitForReadAhead(String url, long position) throws IOException {
+        synchronized (mReadAheadLimits) {
+            try {
+                if (isBeyondReadAhead(url, position)) {
+                    mReadAheadLimits.wait(READ_AHEAD_WAIT);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /*
+     * Rather than racing a RangeDownloader connection for the same bytes,
+     * give it a moment to land them, if it is about to.
+     */
+    private static boolean waitForDownload(VideoCache.Entry entry, long position) {
+        try {
+            return entry.waitForData(position, DOWNLOAD_WINDOW, DOWNLOAD_WAIT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void writeHeaders(OutputStream out, String status, VideoCache.Entry entry,
+            long start, long end, long length) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        String mime = entry.getMimeType();
+        sb.append("Content-Type: ").append(mime != null ? mime : "video/mp4").append("\r\n");
+        if (length >= 0 && start >= 0) {
+            sb.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            if (status.startsWith("206")) {
+                sb.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(length).append("\r\n");
+            }
+        }
+        sb.append("Connection: close\r\n\r\n");
+        out.write(sb.toString().getBytes("US-ASCII"));
+    }
+
+    /**
+     * The parts of the player's HTTP request the proxy cares about.
+     */
+    static class Request {
+        String url;
+        // whether url is http(s), the only schemes the proxy fetches
+        boolean supported;
+        // requested through getPlayerUri()
+        boolean player;
+        boolean headOnly;
+        boolean hasRange;
+        long rangeStart;
+        long rangeEnd = -1;
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+        static Request read(InputStream in) throws IOException {
+            String line = readLine(in);
+            if (line == null) {
+                return null;
+            }
+            String[] parts = line.split(" ");
+            if (parts.length < 2 || parts[1].length() < 2) {
+                return null;
+            }
+            Request request = new Request();
+            request.headOnly = "HEAD".equals(parts[0]);
+            String path = parts[1];
+            request.player = path.startsWith(PLAYER_PATH);
+            request.url = Uri.decode(path.substring(request.player ? PLAYER_PATH.length() : 1));
+            request.supported = isProxyable(Uri.parse(request.url));
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if ("Range".equalsIgnoreCase(name)) {
+                    request.parseRange(value);
+                } else if (!"Host".equalsIgnoreCase(name)
+                        && !"Connection".equalsIgnoreCase(name)) {
+                    // forward things like User-Agent and cookies to the origin
+                    request.headers.put(name, value);
+                }
+            }
+            return request;
+        }
+
+        private void parseRange(String value) {
+            String spec = value.toLowerCase(Locale.US);
+            if (!spec.startsWith("bytes=")) {
+                return;
+            }
+            spec = spec.substring("bytes=".length());
+            int dash = spec.indexOf('-');
+            if (dash <= 0) {
+                return;
+            }
+            try {
+                rangeStart = Long.parseLong(spec.substring(0, dash).trim());
+                String end = spec.substring(dash + 1).trim();
+                rangeEnd = end.length() > 0 ? Long.parseLong(end) : -1;
+                hasRange = true;
+            } catch (NumberFormatException e) {
+                rangeStart = 0;
+                rangeEnd = -1;
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    int len = sb.length();
+                    if (len > 0 && sb.charAt(len - 1) == '\r') {
+                        sb.setLength(len - 1);
+                    }
+                    return sb.toString();
+                }
+                sb.append((char) c);
+            }
+            return sb.length() > 0 ? sb.toString() : null;
+        }
+    }
+
+    /**
+     * A connection to the origin server positioned at a byte offset.
+     */
+    static class Upstream {
+        private final HttpURLConnection mConnection;
+        private final InputStream mInput;
+        long position;
+
+        private Upstream(HttpURLConnection connection, InputStream input, long position) {
+            mConnection = connection;
+            mInput = input;
+            this.position = position;
+        }
+
+        static Upstream open(Request request, VideoCache.Entry entry, long position)
+                throws IOException {
+            PlaybackTrace.markFirst(PlaybackTrace.CONNECT);
+            HttpURLConnection conn = (HttpURLConnection) new URL(request.url).openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            for (Map.Entry<String, String> header : request.headers.entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+            if (position > 0) {
+                conn.setRequestProperty("Range", "bytes=" + position + "-");
+            }
+            int code = conn.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                conn.disconnect();
+                throw new IOException("Unexpected response " + code + " for " + request.url);
+            }
+            InputStream in = conn.getInputStream();
+            long skip = 0;
+            long total = -1;
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                total = VideoCache.getRangeTotal(conn);
+            } else {
+                // the origin ignored our range, skip what we did not ask for
+                total = VideoCache.getContentLength(conn);
+                skip = position;
+            }
+            if (entry.getLength() < 0 && total > 0) {
+                entry.setLength(total);
+            }
+            if (entry.getMimeType() == null && conn.getContentType() != null) {
+                entry.setMimeType(conn.getContentType());
+            }
+            while (skip > 0) {
+                long n = in.skip(skip);
+                if (n <= 0) {
+                    conn.disconnect();
+                    throw new IOException("Unable to skip to " + position);
+                }
+                skip -= n;
+            }
+            return new Upstream(conn, in, position);
+        }
+
+        int read(byte[] buffer, int count) throws IOException {
+            int n = mInput.read(buffer, 0, count);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        void close() {
+            VideoCache.closeQuietly(mInput);
+            mConnection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.test.videoplay.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.KeyGenerator;
+
+import android.test.AndroidTestCase;
+
+import com.test.videoplay.VideoCache;
+
+/**
+ * Byte range bookkeeping and eviction of {@link VideoCache}. Run with
+ * <pre>
+ * ant debug install test
+ * </pre>
+ * from this directory.
+ */
+public class VideoCacheTest extends AndroidTestCase {
+    private static final String URL_A = "http://example.com/a.mp4";
+    private static final String URL_B = "http://example.com/b.mp4";
+    private static final String URL_C = "http://example.com/c.mp4";
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "video-cache-test");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    public void testRangesMerge() throws Exception {
+        VideoCache cache = new VideoCache(mDirectory, 1024 * 1024);
+        VideoCache.Entry entry = cache.open(URL_A);
+        try {
+            entry.setLength(400);
+            entry.write(0, bytes(0, 100), 0, 100);
+            entry.write(200, bytes(200, 100), 0, 100);
+            assertEquals(100, entry.getCachedLength(0));
+            assertEquals(50, entry.getCachedLength(50));
+            assertEquals(0, entry.getCachedLength(100));
+            assertEquals(50, entry.getCachedLength(250));
+            assertEquals(0, entry.getCachedLength(300));
+
+            List<long[]> missing = entry.getMissingRanges();
+            assertEquals(2, missing.size());
+            assertTrue(Arrays.equals(new long[] { 100, 200 }, missing.get(0)));
+            assertTrue(Arrays.equals(new long[] { 300, 400 }, missing.get(1)));
+
+            // overlaps both neighbours, only the gap is new
+            entry.write(50, bytes(50, 200), 0, 200);
+            assertEquals(300, entry.getCachedLength(0));
+            assertEquals(300, cache.getSize());
+            assertFalse(entry.isComplete());
+
+            entry.write(300, bytes(300, 100), 0, 100);
+            assertTrue(entry.isComplete());
+            assertTrue(entry.getMissingRanges().isEmpty());
+        } finally {
+            entry.close();
+        }
+    }
+
+    public void testReadsBackWhatWasWritten() throws Exception {
+        checkReadBack(new VideoCache(mDirectory, 1024 * 1024));
+    }
+
+    public void testReadsBackWhatWasWrittenEncrypted() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        checkReadBack(new VideoCache(mDirectory, 1024 * 1024, generator.generateKey()));
+    }
+
+    private void checkReadBack(VideoCache cache) throws Exception {
+        VideoCache.Entry entry = cache.open(URL_A);
+        try {
+            byte[] data = bytes(1000, 5000);
+            entry.write(1000, data, 0, data.length);
+            byte[] read = new byte[300];
+            assertEquals(read.length, entry.read(3333, read, 0, read.length));
+            assertTrue(Arrays.equals(bytes(3333, 300), read));
+        } finally {
+            entry.close();
+        }
+    }
+
+    public void testDropsEntriesOfAnotherKey() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        VideoCache cache = new VideoCache(mDirectory, 1024 * 1024, generator.generateKey());
+        fill(cache, URL_A, 100);
+
+        cache = new VideoCache(mDirectory, 1024 * 1024, generator.generateKey());
+        assertEquals(0, cache.getCachedLength(URL_A, 0));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testIndexSurvivesReopen() throws Exception {
+        VideoCache cache = new VideoCache(mDirectory, 1024 * 1024);
+        VideoCache.Entry entry = cache.open(URL_A);
+        entry.setLength(1000);
+        entry.setMimeType("video/mp4");
+        entry.write(100, bytes(100, 200), 0, 200);
+        entry.close();
+
+        cache = new VideoCache(mDirectory, 1024 * 1024);
+        assertEquals(1000, cache.getLength(URL_A));
+        assertEquals(200, cache.getCachedLength(URL_A, 100));
+        assertEquals(200, cache.getSize());
+        entry = cache.open(URL_A);
+        try {
+            assertEquals("video/mp4", entry.getMimeType());
+        } finally {
+            entry.close();
+        }
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        VideoCache cache = new VideoCache(mDirectory, 250);
+        fill(cache, URL_A, 100);
+        fill(cache, URL_B, 100);
+        // touch a, so b is the least recently used
+        cache.open(URL_A).close();
+        fill(cache, URL_C, 100);
+
+        assertEquals(100, cache.getCachedLength(URL_A, 0));
+        assertEquals(0, cache.getCachedLength(URL_B, 0));
+        assertEquals(100, cache.getCachedLength(URL_C, 0));
+        assertEquals(200, cache.getSize());
+    }
+
+    public void testKeepsEntriesInUse() throws Exception {
+        VideoCache cache = new VideoCache(mDirectory, 150);
+        VideoCache.Entry held = cache.open(URL_A);
+        try {
+            held.write(0, bytes(0, 100), 0, 100);
+            fill(cache, URL_B, 100);
+            // b is newer, but a cannot go while it is open
+            assertEquals(100, cache.getCachedLength(URL_A, 0));
+            assertEquals(0, cache.getCachedLength(URL_B, 0));
+        } finally {
+            held.close();
+        }
+    }
+
+    private static void fill(VideoCache cache, String url, int length) throws Exception {
+        VideoCache.Entry entry = cache.open(url);
+        try {
+            entry.setLength(length);
+            entry.write(0, bytes(0, length), 0, length);
+        } finally {
+            entry.close();
+        }
+    }
+
+    // bytes that depend on their position, so misplaced reads show up
+    private static byte[] bytes(long position, int count) {
+        byte[] data = new byte[count];
+        for (int i = 0; i < count; i++) {
+            data[i] = (byte) ((position + i) * 31 >>> 3);
+        }
+        return data;
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}